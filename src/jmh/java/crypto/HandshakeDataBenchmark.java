@@ -0,0 +1,48 @@
+package crypto;
+
+import com.google.protobuf.ByteString;
+import crypto.CryptoOuterClass.CipherSuite;
+import crypto.CryptoOuterClass.HandshakeData;
+import java.security.KeyPair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Compares the ways the server puts its public key into the handshake data. */
+@State(Scope.Benchmark)
+public class HandshakeDataBenchmark {
+  private KeyPair keyPair;
+  private ByteString encodedPublicKey;
+
+  @Setup
+  public void setup() {
+    keyPair = DiffieHellman.getInstance().generateKeyPair(2048);
+    encodedPublicKey = Util.wrapOwned(keyPair.getPublic().getEncoded());
+  }
+
+  @Benchmark
+  public HandshakeData copied() {
+    return HandshakeData.newBuilder()
+        .setCipherSuite(CipherSuite.DH)
+        .setData(ByteString.copyFrom(keyPair.getPublic().getEncoded()))
+        .build();
+  }
+
+  @Benchmark
+  public HandshakeData wrapped() {
+    return HandshakeData.newBuilder()
+        .setCipherSuite(CipherSuite.DH)
+        .setData(Util.wrapOwned(keyPair.getPublic().getEncoded()))
+        .build();
+  }
+
+  /** The rotated server key case, encoded once per key epoch. */
+  @Benchmark
+  public HandshakeData cached() {
+    return HandshakeData.newBuilder()
+        .setCipherSuite(CipherSuite.DH)
+        .setData(encodedPublicKey)
+        .build();
+  }
+}
@@ -0,0 +1,72 @@
+package crypto;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import javax.crypto.KeyAgreement;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Compares the pure-Java P-256 engine against the JDK's SunEC provider. */
+@State(Scope.Thread)
+public class P256Benchmark {
+  private final EllipticCurveDiffieHellman sunEc = EllipticCurveDiffieHellman.getInstance();
+  private final P256DiffieHellman p256 = P256DiffieHellman.getInstance();
+
+  private byte[] clientPublicKeyBuf;
+  private PublicKey sunEcClientPublicKey;
+  private PublicKey p256ClientPublicKey;
+  private KeyAgreement sunEcKeyAgreement;
+  private KeyAgreement p256KeyAgreement;
+
+  @Setup
+  public void setup() {
+    clientPublicKeyBuf = sunEc.generateKeyPair("secp256r1").getPublic().getEncoded();
+    sunEcClientPublicKey = sunEc.getPeerPublicKey(clientPublicKeyBuf);
+    p256ClientPublicKey = p256.getPeerPublicKey(clientPublicKeyBuf);
+    sunEcKeyAgreement = sunEc.getKeyAgreement(sunEc.generateKeyPair(sunEcClientPublicKey));
+    p256KeyAgreement = p256.getKeyAgreement(p256.generateKeyPair(p256ClientPublicKey));
+  }
+
+  @Benchmark
+  public KeyPair sunEcKeyGen() {
+    return sunEc.generateKeyPair(sunEcClientPublicKey);
+  }
+
+  @Benchmark
+  public KeyPair p256KeyGen() {
+    return p256.generateKeyPair(p256ClientPublicKey);
+  }
+
+  @Benchmark
+  public byte[] sunEcAgreement() {
+    sunEc.doPhase(sunEcKeyAgreement, sunEcClientPublicKey);
+    return sunEcKeyAgreement.generateSecret();
+  }
+
+  @Benchmark
+  public byte[] p256Agreement() {
+    p256.doPhase(p256KeyAgreement, p256ClientPublicKey);
+    return p256KeyAgreement.generateSecret();
+  }
+
+  /** The server side of a handshake: parsing, key generation and key agreement. */
+  @Benchmark
+  public byte[] sunEcHandshake() {
+    return handshake(sunEc);
+  }
+
+  @Benchmark
+  public byte[] p256Handshake() {
+    return handshake(p256);
+  }
+
+  private byte[] handshake(EllipticCurveDiffieHellman algoInst) {
+    PublicKey clientPublicKey = algoInst.getPeerPublicKey(clientPublicKeyBuf);
+    KeyAgreement keyAgreement =
+        algoInst.getKeyAgreement(algoInst.generateKeyPair(clientPublicKey));
+    algoInst.doPhase(keyAgreement, clientPublicKey);
+    return keyAgreement.generateSecret();
+  }
+}
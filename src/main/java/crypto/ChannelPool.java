@@ -0,0 +1,249 @@
+package crypto;
+
+import crypto.CryptoGrpc.CryptoBlockingStub;
+import io.grpc.ConnectivityState;
+import io.grpc.Grpc;
+import io.grpc.InsecureChannelCredentials;
+import io.grpc.ManagedChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads handshakes over several connections to several server replicas.
+ *
+ * <p>Each connection is a channel of its own, so handshakes are not limited by the concurrent
+ * streams of a single HTTP/2 connection. A handshake goes to the connection with the least
+ * outstanding requests, weighted by a moving average of its recent handshake latencies, so that
+ * slow or overloaded replicas receive less traffic. A connection without handshakes yet is assumed
+ * as fast as the average connection. Connected connections are preferred over the ones still to
+ * connect, and connections which failed to connect are avoided while others are usable. Every
+ * handshake is bounded by a deadline, so that an unresponsive replica cannot hold a caller.
+ */
+public class ChannelPool implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(ChannelPool.class.getName());
+
+  // Weight of a new latency sample in the moving average, as a right shift: 1/8
+  private static final int LATENCY_SMOOTHING_SHIFT = 3;
+  // Latency accounted for a failed handshake
+  private static final long FAILURE_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(1);
+  // Latency assumed for every connection until one is measured
+  private static final long DEFAULT_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long DEFAULT_DEADLINE_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+  private final List<Connection> connections;
+
+  /** A connection to a replica with its load statistics. */
+  public static class Connection {
+    private final String target;
+    private final ManagedChannel channel;
+    private final CryptoBlockingStub blockingStub;
+    private final long deadlineMillis;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong latencyNanos = new AtomicLong();
+
+    Connection(String target, long deadlineMillis) {
+      this.target = target;
+      this.channel = Grpc.newChannelBuilder(target, InsecureChannelCredentials.create()).build();
+      this.blockingStub = CryptoGrpc.newBlockingStub(channel);
+      this.deadlineMillis = deadlineMillis;
+    }
+
+    public String getTarget() {
+      return target;
+    }
+
+    /** Returns a stub for one handshake, whose deadline starts now. */
+    public CryptoBlockingStub getBlockingStub() {
+      return blockingStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Returns the number of handshakes in progress on the connection. */
+    public int getOutstanding() {
+      return outstanding.get();
+    }
+
+    /** Returns the moving average of the handshake latency, or {@code 0} before any handshake. */
+    public long getLatencyNanos() {
+      return latencyNanos.get();
+    }
+
+    private long score(long unmeasuredLatencyNanos) {
+      long latency = latencyNanos.get();
+      return (outstanding.get() + 1L) * (latency == 0 ? unmeasuredLatencyNanos : latency);
+    }
+
+    private void recordLatency(long latency) {
+      // Zero stands for unmeasured
+      long sampleNanos = Math.max(latency, 1);
+      latencyNanos.updateAndGet(
+          average ->
+              average == 0
+                  ? sampleNanos
+                  : average + ((sampleNanos - average) >> LATENCY_SMOOTHING_SHIFT));
+    }
+  }
+
+  /**
+   * Creates the connections of the pool, which connect lazily unless warmed up.
+   *
+   * @param targets the addresses of the replicas, e.g. {@code localhost:50051}.
+   * @param connectionsPerTarget the number of connections opened to each replica.
+   */
+  public ChannelPool(List<String> targets, int connectionsPerTarget) {
+    this(targets, connectionsPerTarget, DEFAULT_DEADLINE_MILLIS);
+  }
+
+  /**
+   * Creates the connections of the pool, which connect lazily unless warmed up.
+   *
+   * @param targets the addresses of the replicas, e.g. {@code localhost:50051}.
+   * @param connectionsPerTarget the number of connections opened to each replica.
+   * @param deadlineMillis the maximum duration of a handshake, 5 seconds by default.
+   */
+  public ChannelPool(List<String> targets, int connectionsPerTarget, long deadlineMillis) {
+    if (targets.isEmpty() || connectionsPerTarget <= 0 || deadlineMillis <= 0) {
+      throw new IllegalArgumentException(
+          "Need targets, a positive number of connections per target and a positive deadline");
+    }
+    List<Connection> connections = new ArrayList<>(targets.size() * connectionsPerTarget);
+    for (String target : targets) {
+      for (int i = 0; i < connectionsPerTarget; i++) {
+        connections.add(new Connection(target, deadlineMillis));
+      }
+    }
+    this.connections = Collections.unmodifiableList(connections);
+  }
+
+  public List<Connection> getConnections() {
+    return connections;
+  }
+
+  /**
+   * Establishes all connections ahead of the first handshakes.
+   *
+   * @param timeout the maximum time to wait for the connections.
+   * @param unit the unit of the timeout.
+   * @return {@code true} if every connection is ready.
+   */
+  public boolean warmUp(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    CountDownLatch settled = new CountDownLatch(connections.size());
+    for (Connection connection : connections) {
+      awaitSettled(connection.channel, connection.channel.getState(true), settled);
+    }
+    settled.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+    boolean ready = true;
+    for (Connection connection : connections) {
+      ConnectivityState state = connection.channel.getState(false);
+      if (state != ConnectivityState.READY) {
+        logger.log(Level.WARNING, "Connection to " + connection.target + " is " + state);
+        ready = false;
+      }
+    }
+    return ready;
+  }
+
+  private static void awaitSettled(
+      ManagedChannel channel, ConnectivityState state, CountDownLatch settled) {
+    if (state == ConnectivityState.READY
+        || state == ConnectivityState.TRANSIENT_FAILURE
+        || state == ConnectivityState.SHUTDOWN) {
+      settled.countDown();
+      return;
+    }
+    channel.notifyWhenStateChanged(
+        state, () -> awaitSettled(channel, channel.getState(false), settled));
+  }
+
+  /**
+   * Picks the least loaded connection for a handshake, which must be handed back to {@link
+   * #release} once the handshake is over.
+   */
+  public Connection acquire() {
+    long unmeasuredLatencyNanos = averageLatencyNanos();
+    // Starts at a random connection so that ties do not all go to the first one
+    int size = connections.size();
+    int start = ThreadLocalRandom.current().nextInt(size);
+    // Best connection of each preference: ready, still to connect, failed to connect
+    Connection[] best = new Connection[3];
+    long[] bestScores = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+    for (int i = 0; i < size; i++) {
+      Connection connection = connections.get((start + i) % size);
+      int preference = preference(connection.channel.getState(false));
+      long score = connection.score(unmeasuredLatencyNanos);
+      if (score < bestScores[preference]) {
+        best[preference] = connection;
+        bestScores[preference] = score;
+      }
+    }
+    Connection connection = best[0] != null ? best[0] : best[1] != null ? best[1] : best[2];
+    connection.outstanding.incrementAndGet();
+    return connection;
+  }
+
+  private static int preference(ConnectivityState state) {
+    switch (state) {
+      case READY:
+        return 0;
+      case IDLE:
+      case CONNECTING:
+        return 1;
+      default:
+        return 2;
+    }
+  }
+
+  /** Returns the mean latency of the measured connections, or a default if none is. */
+  private long averageLatencyNanos() {
+    long sum = 0;
+    int count = 0;
+    for (Connection connection : connections) {
+      long latency = connection.latencyNanos.get();
+      if (latency != 0) {
+        sum += latency;
+        count++;
+      }
+    }
+    return count == 0 ? DEFAULT_LATENCY_NANOS : sum / count;
+  }
+
+  /**
+   * Hands back a connection once its handshake is over.
+   *
+   * @param connection the connection returned by {@link #acquire}.
+   * @param latencyNanos the duration of the handshake.
+   * @param succeeded whether the handshake succeeded, failures count as a high latency.
+   */
+  public void release(Connection connection, long latencyNanos, boolean succeeded) {
+    connection.recordLatency(succeeded ? latencyNanos : FAILURE_LATENCY_NANOS);
+    connection.outstanding.decrementAndGet();
+  }
+
+  /** Shuts down all connections. */
+  @Override
+  public void close() {
+    for (Connection connection : connections) {
+      connection.channel.shutdown();
+    }
+    try {
+      for (Connection connection : connections) {
+        connection.channel.awaitTermination(5, TimeUnit.SECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      for (Connection connection : connections) {
+        connection.channel.shutdownNow();
+      }
+    }
+  }
+}
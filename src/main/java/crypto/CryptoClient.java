@@ -6,12 +6,14 @@ import crypto.CryptoOuterClass.CipherSuite;
 import crypto.CryptoOuterClass.HandshakeData;
 import crypto.CryptoOuterClass.OpenConnectionRequest;
 import crypto.CryptoOuterClass.OpenConnectionResponse;
+import crypto.CryptoOuterClass.Session;
 import io.grpc.Channel;
-import io.grpc.Grpc;
-import io.grpc.InsecureChannelCredentials;
-import io.grpc.ManagedChannel;
 import java.security.KeyPair;
 import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -22,17 +24,37 @@ public class CryptoClient {
   private static final Logger logger = Logger.getLogger(CryptoClient.class.getName());
 
   private final CryptoBlockingStub blockingStub;
+  private final ChannelPool channelPool;
+  private final Map<CipherSuite, CachedServerKey> serverKeyCache = new ConcurrentHashMap<>();
+  private final Map<CipherSuite, Session> sessions = new ConcurrentHashMap<>();
+
+  /** A parsed server public key, reusable while the server keeps its key epoch. */
+  private record CachedServerKey(long epoch, ByteString data, PublicKey publicKey) {}
 
   public CryptoClient(Channel channel) {
     blockingStub = CryptoGrpc.newBlockingStub(channel);
+    channelPool = null;
   }
 
   /**
-   * Performs handshake with the server.
+   * Creates a client spreading its handshakes over the connections of a pool.
+   *
+   * @param channelPool the pool, which the client does not close.
+   */
+  public CryptoClient(ChannelPool channelPool) {
+    blockingStub = null;
+    this.channelPool = channelPool;
+  }
+
+  /**
+   * Performs handshake with the server, resuming the last session of the cipher suite if the
+   * server still knows it. A resumed handshake returns a key derived from the session's secret and
+   * fresh nonces of both sides, which differs from the key of every other handshake.
    *
    * @param cipherSuite the cipher suite used to perform the handshake.
+   * @return the shared secret, or {@code null} if the handshake failed.
    */
-  public void doHandshake(CipherSuite cipherSuite) {
+  public byte[] doHandshake(CipherSuite cipherSuite) {
     DiffieHellman algoInst = null;
     KeyPair clientKeyPair = null;
     switch (cipherSuite) {
@@ -48,53 +70,133 @@ public class CryptoClient {
         logger.log(Level.SEVERE, "Invalid handshake algorithm");
     }
     if (algoInst == null || clientKeyPair == null) {
-      return;
+      return null;
     }
     KeyAgreement clientKeyAgreement = algoInst.getKeyAgreement(clientKeyPair);
     if (clientKeyAgreement == null) {
-      return;
+      return null;
     }
 
     byte[] clientPublicKeyBuf = clientKeyPair.getPublic().getEncoded();
-    logger.log(Level.INFO, "Client's public key: " + Util.toHexString(clientPublicKeyBuf));
+    if (logger.isLoggable(Level.INFO)) {
+      logger.log(Level.INFO, "Client's public key: " + Util.toHexString(clientPublicKeyBuf));
+    }
 
-    OpenConnectionRequest request =
+    // The key share is sent along in case the server no longer knows the session
+    Session session = sessions.get(cipherSuite);
+    OpenConnectionRequest.Builder requestBuilder =
         OpenConnectionRequest.newBuilder()
             .addHandshakeDataList(
                 HandshakeData.newBuilder()
                     .setCipherSuite(cipherSuite)
-                    .setData(ByteString.copyFrom(clientPublicKeyBuf))
-                    .build())
-            .build();
-    OpenConnectionResponse response = blockingStub.openConnection(request);
+                    .setData(Util.wrapOwned(clientPublicKeyBuf))
+                    .build());
+    ByteString clientNonce = null;
+    if (session != null) {
+      clientNonce = SessionResumption.newNonce();
+      ByteString binder = SessionResumption.binder(session, clientNonce);
+      if (binder != null) {
+        requestBuilder
+            .setSessionId(session.getSessionId())
+            .setClientNonce(clientNonce)
+            .setResumptionBinder(binder);
+      }
+    }
+    OpenConnectionResponse response = openConnection(requestBuilder.build());
+    if (session != null
+        && response.getResumed()
+        && response.getSessionId().equals(session.getSessionId())) {
+      logger.log(Level.INFO, "Session resumed by server");
+      // Every resumption gets its own key, never the session's secret itself
+      return SessionResumption.deriveKey(session, clientNonce, response.getServerNonce());
+    }
+    sessions.remove(cipherSuite);
+
     HandshakeData serverHandshakeData = response.getHandshakeData();
     CipherSuite serverCipherSuite = serverHandshakeData.getCipherSuite();
     // TODO: verify serverCipherSuite
-    byte[] serverData = serverHandshakeData.getData().toByteArray();
-    PublicKey serverPublicKey = algoInst.getPeerPublicKey(serverData);
+    PublicKey serverPublicKey = getServerPublicKey(algoInst, serverHandshakeData);
     if (serverPublicKey == null) {
-      return;
+      return null;
     }
     boolean nextPhaseOk = algoInst.doPhase(clientKeyAgreement, serverPublicKey);
     if (!nextPhaseOk) {
-      return;
+      return null;
     }
 
     byte[] sharedSecret = clientKeyAgreement.generateSecret();
-    logger.log(
-        Level.INFO, "Shared secret generated by client: " + Util.toHexString(sharedSecret, ":"));
+    if (logger.isLoggable(Level.INFO)) {
+      logger.log(
+          Level.INFO, "Shared secret generated by client: " + Util.toHexString(sharedSecret, ":"));
+    }
+
+    if (!response.getSessionId().isEmpty()) {
+      sessions.put(
+          cipherSuite,
+          Session.newBuilder()
+              .setSessionId(response.getSessionId())
+              .setCipherSuite(cipherSuite)
+              // Copied since the returned secret belongs to the caller
+              .setSecret(ByteString.copyFrom(sharedSecret))
+              .build());
+    }
+    return sharedSecret;
   }
 
-  /** Issues several different requests and then exits. */
-  public static void main(String[] args) throws InterruptedException {
-    ManagedChannel channel =
-        Grpc.newChannelBuilder("localhost:50051", InsecureChannelCredentials.create()).build();
+  private OpenConnectionResponse openConnection(OpenConnectionRequest request) {
+    if (channelPool == null) {
+      return blockingStub.openConnection(request);
+    }
+    ChannelPool.Connection connection = channelPool.acquire();
+    long start = System.nanoTime();
+    boolean succeeded = false;
     try {
-      CryptoClient client = new CryptoClient(channel);
+      OpenConnectionResponse response = connection.getBlockingStub().openConnection(request);
+      succeeded = true;
+      return response;
+    } finally {
+      channelPool.release(connection, System.nanoTime() - start, succeeded);
+    }
+  }
+
+  private PublicKey getServerPublicKey(DiffieHellman algoInst, HandshakeData serverHandshakeData) {
+    CipherSuite cipherSuite = serverHandshakeData.getCipherSuite();
+    long keyEpoch = serverHandshakeData.getKeyEpoch();
+    ByteString serverData = serverHandshakeData.getData();
+    CachedServerKey cached = serverKeyCache.get(cipherSuite);
+    if (keyEpoch != 0
+        && cached != null
+        && cached.epoch() == keyEpoch
+        && cached.data().equals(serverData)) {
+      return cached.publicKey();
+    }
+    PublicKey serverPublicKey = algoInst.getPeerPublicKey(serverData.toByteArray());
+    if (serverPublicKey != null && keyEpoch != 0) {
+      logger.log(Level.INFO, "Caching server's public key of epoch " + keyEpoch);
+      serverKeyCache.put(cipherSuite, new CachedServerKey(keyEpoch, serverData, serverPublicKey));
+    }
+    return serverPublicKey;
+  }
+
+  /**
+   * Issues several different requests and then exits.
+   *
+   * <p>Usage: {@code crypto-client [target...]}, where the targets are the addresses of the server
+   * replicas, {@code localhost:50051} by default. The {@code crypto.connectionsPerTarget} system
+   * property sets the number of connections opened to each replica, 2 by default, and {@code
+   * crypto.handshakeDeadlineMillis} the maximum duration of a handshake, 5000 by default.
+   */
+  public static void main(String[] args) throws InterruptedException {
+    List<String> targets = args.length > 0 ? Arrays.asList(args) : List.of("localhost:50051");
+    int connectionsPerTarget = Integer.getInteger("crypto.connectionsPerTarget", 2);
+    long deadlineMillis = Long.getLong("crypto.handshakeDeadlineMillis", 5000);
+    try (ChannelPool channelPool =
+        new ChannelPool(targets, connectionsPerTarget, deadlineMillis)) {
+      channelPool.warmUp(5, TimeUnit.SECONDS);
+      CryptoClient client = new CryptoClient(channelPool);
       client.doHandshake(CipherSuite.DH);
       client.doHandshake(CipherSuite.ECDH);
-    } finally {
-      channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+      client.doHandshake(CipherSuite.ECDH); // resumes the previous session if on the same replica
     }
   }
 }
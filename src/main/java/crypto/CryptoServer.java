@@ -5,15 +5,25 @@ import crypto.CryptoOuterClass.CipherSuite;
 import crypto.CryptoOuterClass.HandshakeData;
 import crypto.CryptoOuterClass.OpenConnectionRequest;
 import crypto.CryptoOuterClass.OpenConnectionResponse;
+import crypto.CryptoOuterClass.Session;
 import io.grpc.Grpc;
 import io.grpc.InsecureServerCredentials;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.StatusRuntimeException;
+import io.grpc.TlsChannelCredentials;
+import io.grpc.TlsServerCredentials;
 import io.grpc.stub.StreamObserver;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.KeyPair;
 import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -23,16 +33,100 @@ import javax.crypto.KeyAgreement;
 public class CryptoServer {
   private static final Logger logger = Logger.getLogger(CryptoServer.class.getName());
 
+  private static final long SNAPSHOT_CHECKPOINT_SECONDS = 30;
+
   private final int port;
   private final Server server;
+  private final Map<CipherSuite, KeyRotationManager> keyRotationManagers;
+  private final SessionBackend sessionBackend;
 
   public CryptoServer(int port) throws IOException {
     this(Grpc.newServerBuilderForPort(port, InsecureServerCredentials.create()), port);
   }
 
   public CryptoServer(ServerBuilder<?> serverBuilder, int port) throws IOException {
+    this(serverBuilder, port, 0, 0);
+  }
+
+  /**
+   * Constructs a cryptographic server which optionally reuses rotated server key pairs.
+   *
+   * @param serverBuilder the builder of the underlying grpc server.
+   * @param port the port to listen on.
+   * @param keyRotationSeconds the number of seconds a server key pair is reused for, {@code 0}
+   *     to generate a fresh key pair for every handshake.
+   * @param keyRotationMaxUses the number of handshakes a server key pair is reused for, {@code 0}
+   *     for no limit besides {@code keyRotationSeconds}.
+   */
+  public CryptoServer(
+      ServerBuilder<?> serverBuilder, int port, long keyRotationSeconds, long keyRotationMaxUses)
+      throws IOException {
+    this(serverBuilder, port, keyRotationSeconds, keyRotationMaxUses, new InMemorySessionBackend());
+  }
+
+  /**
+   * Constructs a cryptographic server which stores its sessions in a session backend.
+   *
+   * @param serverBuilder the builder of the underlying grpc server.
+   * @param port the port to listen on.
+   * @param keyRotationSeconds the number of seconds a server key pair is reused for, {@code 0}
+   *     to generate a fresh key pair for every handshake.
+   * @param keyRotationMaxUses the number of handshakes a server key pair is reused for, {@code 0}
+   *     for no limit besides {@code keyRotationSeconds}.
+   * @param sessionBackend the backend storing the resumable sessions, closed when the server stops.
+   */
+  public CryptoServer(
+      ServerBuilder<?> serverBuilder,
+      int port,
+      long keyRotationSeconds,
+      long keyRotationMaxUses,
+      SessionBackend sessionBackend)
+      throws IOException {
+    this(
+        serverBuilder,
+        port,
+        keyRotationSeconds,
+        keyRotationMaxUses,
+        sessionBackend,
+        EllipticCurveDiffieHellman.getInstance());
+  }
+
+  /**
+   * Constructs a cryptographic server with a choice of ECDH implementation.
+   *
+   * @param serverBuilder the builder of the underlying grpc server.
+   * @param port the port to listen on.
+   * @param keyRotationSeconds the number of seconds a server key pair is reused for, {@code 0}
+   *     to generate a fresh key pair for every handshake.
+   * @param keyRotationMaxUses the number of handshakes a server key pair is reused for, {@code 0}
+   *     for no limit besides {@code keyRotationSeconds}.
+   * @param sessionBackend the backend storing the resumable sessions, closed when the server stops.
+   * @param ecdhAlgoInst the algorithm performing ECDH handshakes, e.g. {@link
+   *     P256DiffieHellman#getInstance()}.
+   */
+  public CryptoServer(
+      ServerBuilder<?> serverBuilder,
+      int port,
+      long keyRotationSeconds,
+      long keyRotationMaxUses,
+      SessionBackend sessionBackend,
+      EllipticCurveDiffieHellman ecdhAlgoInst)
+      throws IOException {
     this.port = port;
-    server = serverBuilder.addService(new CryptoService()).build();
+    this.sessionBackend = sessionBackend;
+    Map<CipherSuite, DiffieHellman> algoInsts = new EnumMap<>(CipherSuite.class);
+    algoInsts.put(CipherSuite.DH, DiffieHellman.getInstance());
+    algoInsts.put(CipherSuite.ECDH, ecdhAlgoInst);
+    keyRotationManagers = new EnumMap<>(CipherSuite.class);
+    if (keyRotationSeconds > 0) {
+      for (Map.Entry<CipherSuite, DiffieHellman> entry : algoInsts.entrySet()) {
+        keyRotationManagers.put(
+            entry.getKey(),
+            new KeyRotationManager(entry.getValue(), keyRotationSeconds, keyRotationMaxUses));
+      }
+    }
+    serverBuilder.addService(new CryptoService(algoInsts, keyRotationManagers, sessionBackend));
+    server = serverBuilder.build();
   }
 
   /** Starts serving requests. */
@@ -57,11 +151,20 @@ public class CryptoServer {
             });
   }
 
+  /** Returns the port the server listens on, useful when it was started on port {@code 0}. */
+  public int getPort() {
+    return server.getPort();
+  }
+
   /** Stops serving requests and shutdown resources. */
   public void stop() throws InterruptedException {
     if (server != null) {
       server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
     }
+    for (KeyRotationManager keyRotationManager : keyRotationManagers.values()) {
+      keyRotationManager.close();
+    }
+    sessionBackend.close();
   }
 
   /** Await termination on the main thread since the grpc library uses daemon threads. */
@@ -71,17 +174,125 @@ public class CryptoServer {
     }
   }
 
-  /** Constructs and starts a cryptographic server. */
+  /**
+   * Constructs and starts a cryptographic server.
+   *
+   * <p>Usage: {@code crypto-server [port [peer...]]}, where each peer is the replication address of
+   * another replica sharing its sessions with this one. Replicas receive sessions on the {@code
+   * crypto.replicationPort} port, the client port plus one by default, over mutual TLS using the
+   * PEM files named by the {@code crypto.replicationCertChain}, {@code
+   * crypto.replicationPrivateKey} and {@code crypto.replicationTrustCerts} system properties, and
+   * authenticate each other with the token in the {@code crypto.replicationTokenFile} file.
+   *
+   * <p>Setting the {@code crypto.p256Engine} system property to {@code true} runs ECDH handshakes
+   * on {@link P256DiffieHellman}. Setting the {@code crypto.snapshotFile} system property
+   * checkpoints sessions into that file to resume them after a restart, encrypted under the key in
+   * the {@code crypto.snapshotKeyFile} file, which is then required and must live in another
+   * directory than the snapshot, e.g. on a separately protected volume. Setting the {@code
+   * crypto.keyRotationSeconds} system property reuses each server key pair for that many seconds,
+   * and for at most {@code crypto.keyRotationMaxUses} handshakes if that property is set.
+   */
   public static void main(String[] args) throws Exception {
-    CryptoServer server = new CryptoServer(50051);
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 50051;
+    SessionBackend sessionBackend;
+    if (args.length > 1) {
+      File certChain = new File(getRequiredProperty("crypto.replicationCertChain"));
+      File privateKey = new File(getRequiredProperty("crypto.replicationPrivateKey"));
+      File trustCerts = new File(getRequiredProperty("crypto.replicationTrustCerts"));
+      ReplicatedSessionBackend replicatedSessionBackend =
+          new ReplicatedSessionBackend(
+              Integer.getInteger("crypto.replicationPort", port + 1),
+              TlsServerCredentials.newBuilder()
+                  .keyManager(certChain, privateKey)
+                  .trustManager(trustCerts)
+                  .clientAuth(TlsServerCredentials.ClientAuth.REQUIRE)
+                  .build(),
+              TlsChannelCredentials.newBuilder()
+                  .keyManager(certChain, privateKey)
+                  .trustManager(trustCerts)
+                  .build(),
+              Files.readAllBytes(Paths.get(getRequiredProperty("crypto.replicationTokenFile"))));
+      for (int i = 1; i < args.length; i++) {
+        replicatedSessionBackend.addPeer(args[i]);
+      }
+      sessionBackend = replicatedSessionBackend;
+    } else {
+      sessionBackend = new InMemorySessionBackend();
+    }
+    String snapshotFile = System.getProperty("crypto.snapshotFile");
+    if (snapshotFile != null) {
+      Path snapshotPath = Paths.get(snapshotFile).toAbsolutePath();
+      Path keyPath = Paths.get(getRequiredProperty("crypto.snapshotKeyFile")).toAbsolutePath();
+      if (keyPath.getParent().equals(snapshotPath.getParent())) {
+        // A copy of the snapshot's directory would carry the key along
+        throw new IllegalArgumentException(
+            "crypto.snapshotKeyFile must not be in the directory of crypto.snapshotFile");
+      }
+      sessionBackend =
+          new SnapshotSessionBackend(
+              sessionBackend,
+              snapshotPath,
+              SnapshotSessionBackend.loadKeyEncryptionKey(keyPath),
+              SNAPSHOT_CHECKPOINT_SECONDS);
+    }
+    EllipticCurveDiffieHellman ecdhAlgoInst =
+        Boolean.getBoolean("crypto.p256Engine")
+            ? P256DiffieHellman.getInstance()
+            : EllipticCurveDiffieHellman.getInstance();
+    CryptoServer server =
+        new CryptoServer(
+            Grpc.newServerBuilderForPort(port, InsecureServerCredentials.create()),
+            port,
+            Long.getLong("crypto.keyRotationSeconds", 0),
+            Long.getLong("crypto.keyRotationMaxUses", 0),
+            sessionBackend,
+            ecdhAlgoInst);
     server.start();
     server.blockUntilShutdown();
   }
 
+  private static String getRequiredProperty(String key) {
+    String value = System.getProperty(key);
+    if (value == null) {
+      throw new IllegalArgumentException("Missing system property " + key);
+    }
+    return value;
+  }
+
   private static class CryptoService extends CryptoGrpc.CryptoImplBase {
+    private static final int SESSION_ID_LENGTH = 16;
+    private static final long SESSION_LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int KEY_AGREEMENT_POOL_CAPACITY = 64;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Map<CipherSuite, DiffieHellman> algoInsts;
+    private final Map<CipherSuite, KeyRotationManager> keyRotationManagers;
+    private final SessionBackend sessionBackend;
+    private final Map<CipherSuite, KeyAgreementPool> keyAgreementPools =
+        new EnumMap<>(CipherSuite.class);
+
+    CryptoService(
+        Map<CipherSuite, DiffieHellman> algoInsts,
+        Map<CipherSuite, KeyRotationManager> keyRotationManagers,
+        SessionBackend sessionBackend) {
+      this.algoInsts = algoInsts;
+      this.keyRotationManagers = keyRotationManagers;
+      this.sessionBackend = sessionBackend;
+      for (Map.Entry<CipherSuite, DiffieHellman> entry : algoInsts.entrySet()) {
+        keyAgreementPools.put(
+            entry.getKey(), new KeyAgreementPool(entry.getValue(), KEY_AGREEMENT_POOL_CAPACITY));
+      }
+    }
+
     @Override
     public void openConnection(
         OpenConnectionRequest request, StreamObserver<OpenConnectionResponse> responseObserver) {
+      OpenConnectionResponse resumed = resume(request);
+      if (resumed != null) {
+        responseObserver.onNext(resumed);
+        responseObserver.onCompleted();
+        return;
+      }
       for (HandshakeData clientHandshakeData : request.getHandshakeDataListList()) {
         CipherSuite clientCipherSuite = clientHandshakeData.getCipherSuite();
         ByteString clientData = clientHandshakeData.getData();
@@ -90,12 +301,11 @@ public class CryptoServer {
           continue;
         }
 
-        HandshakeData serverHandshakeData = getServerHandshakeData(clientCipherSuite, clientData);
-        if (serverHandshakeData == null) {
+        OpenConnectionResponse response = handshake(clientCipherSuite, clientData);
+        if (response == null) {
           continue;
         }
-        responseObserver.onNext(
-            OpenConnectionResponse.newBuilder().setHandshakeData(serverHandshakeData).build());
+        responseObserver.onNext(response);
         responseObserver.onCompleted();
         return;
       }
@@ -107,56 +317,146 @@ public class CryptoServer {
       return true;
     }
 
-    private HandshakeData getServerHandshakeData(
-        CipherSuite clientCipherSuite, ByteString clientData) {
-      byte[] serverPublicKeyBuf = null;
-      switch (clientCipherSuite) {
-        case DH:
-          serverPublicKeyBuf = dh(DiffieHellman.getInstance(), clientData.toByteArray());
-          break;
-        case ECDH:
-          serverPublicKeyBuf =
-              dh(EllipticCurveDiffieHellman.getInstance(), clientData.toByteArray());
-          break;
-        default:
-          return null;
+    private OpenConnectionResponse resume(OpenConnectionRequest request) {
+      ByteString sessionId = request.getSessionId();
+      if (sessionId.isEmpty()) {
+        return null;
       }
-      if (serverPublicKeyBuf == null) {
+      Session session = sessionBackend.get(sessionId);
+      if (session == null) {
         return null;
       }
-      return HandshakeData.newBuilder()
-          .setCipherSuite(clientCipherSuite)
-          .setData(ByteString.copyFrom(serverPublicKeyBuf))
-          .build();
+      if (!SessionResumption.verifyBinder(
+          session, request.getClientNonce(), request.getResumptionBinder())) {
+        logger.log(Level.WARNING, "Invalid resumption binder, performing a full handshake");
+        return null;
+      }
+      for (HandshakeData clientHandshakeData : request.getHandshakeDataListList()) {
+        if (clientHandshakeData.getCipherSuite() == session.getCipherSuite()) {
+          // The connection key is derived from both nonces, see SessionResumption
+          ByteString serverNonce = SessionResumption.newNonce();
+          byte[] resumedKey =
+              SessionResumption.deriveKey(session, request.getClientNonce(), serverNonce);
+          if (resumedKey == null) {
+            return null;
+          }
+          if (logger.isLoggable(Level.INFO)) {
+            logger.log(
+                Level.INFO, "Resumed session " + Util.toHexString(sessionId.toByteArray()));
+            logger.log(
+                Level.INFO, "Resumed key derived by server: " + Util.toHexString(resumedKey, ":"));
+          }
+          return OpenConnectionResponse.newBuilder()
+              .setHandshakeData(HandshakeData.newBuilder().setCipherSuite(session.getCipherSuite()))
+              .setSessionId(sessionId)
+              .setResumed(true)
+              .setServerNonce(serverNonce)
+              .build();
+        }
+      }
+      return null;
     }
 
-    private byte[] dh(DiffieHellman algoInst, byte[] peerPublicKeyBuf) {
+    private OpenConnectionResponse handshake(
+        CipherSuite clientCipherSuite, ByteString clientData) {
+      DiffieHellman algoInst = algoInsts.get(clientCipherSuite);
+      if (algoInst == null) {
+        return null;
+      }
+      return dh(clientCipherSuite, algoInst, clientData.toByteArray());
+    }
+
+    private OpenConnectionResponse dh(
+        CipherSuite cipherSuite, DiffieHellman algoInst, byte[] peerPublicKeyBuf) {
       PublicKey peerPublicKey = algoInst.getPeerPublicKey(peerPublicKeyBuf);
       if (peerPublicKey == null) {
         return null;
       }
-      KeyPair keyPair = algoInst.generateKeyPair(peerPublicKey);
+      KeyPair keyPair = null;
+      ByteString publicKeyData = null;
+      long keyEpoch = 0;
+      KeyRotationManager keyRotationManager = keyRotationManagers.get(cipherSuite);
+      if (keyRotationManager != null) {
+        KeyRotationManager.ServerKey serverKey = keyRotationManager.acquire(peerPublicKey);
+        if (serverKey != null) {
+          keyPair = serverKey.getKeyPair();
+          publicKeyData = serverKey.getEncodedPublicKey();
+          keyEpoch = serverKey.getEpoch();
+        }
+      } else {
+        keyPair = algoInst.generateKeyPair(peerPublicKey);
+        if (keyPair != null) {
+          publicKeyData = Util.wrapOwned(keyPair.getPublic().getEncoded());
+        }
+      }
       if (keyPair == null) {
         return null;
       }
 
-      byte[] publicKeyBuf = keyPair.getPublic().getEncoded();
-      logger.log(Level.INFO, "Server's public key: " + Util.toHexString(publicKeyBuf));
+      if (logger.isLoggable(Level.INFO)) {
+        logger.log(
+            Level.INFO, "Server's public key: " + Util.toHexString(publicKeyData.toByteArray()));
+      }
 
-      KeyAgreement keyAgreement = algoInst.getKeyAgreement(keyPair);
-      if (keyAgreement == null) {
+      ByteString sharedSecret =
+          agree(keyAgreementPools.get(cipherSuite), algoInst, keyPair, peerPublicKey);
+      if (sharedSecret == null) {
         return null;
       }
-      boolean doPhaseOk = algoInst.doPhase(keyAgreement, peerPublicKey);
-      if (!doPhaseOk) {
+
+      byte[] sessionIdBuf = new byte[SESSION_ID_LENGTH];
+      random.nextBytes(sessionIdBuf);
+      Session session =
+          Session.newBuilder()
+              .setSessionId(Util.wrapOwned(sessionIdBuf))
+              .setCipherSuite(cipherSuite)
+              .setSecret(sharedSecret)
+              .setExpiresAtMillis(System.currentTimeMillis() + SESSION_LIFETIME_MILLIS)
+              .build();
+      sessionBackend.put(session);
+
+      return OpenConnectionResponse.newBuilder()
+          .setHandshakeData(
+              HandshakeData.newBuilder()
+                  .setCipherSuite(cipherSuite)
+                  .setData(publicKeyData)
+                  .setKeyEpoch(keyEpoch))
+          .setSessionId(session.getSessionId())
+          .build();
+    }
+
+    private ByteString agree(
+        KeyAgreementPool keyAgreementPool,
+        DiffieHellman algoInst,
+        KeyPair keyPair,
+        PublicKey peerPublicKey) {
+      KeyAgreement keyAgreement = keyAgreementPool.acquire(keyPair);
+      if (keyAgreement == null) {
         return null;
       }
+      byte[] secretBuffer = keyAgreementPool.acquireSecretBuffer();
+      try {
+        boolean doPhaseOk = algoInst.doPhase(keyAgreement, peerPublicKey);
+        if (!doPhaseOk) {
+          return null;
+        }
 
-      byte[] sharedSecret = keyAgreement.generateSecret();
-      logger.log(
-          Level.INFO, "Shared secret generated by server: " + Util.toHexString(sharedSecret, ":"));
-
-      return publicKeyBuf;
+        int secretLength = algoInst.generateSecret(keyAgreement, secretBuffer, 0);
+        if (secretLength < 0) {
+          return null;
+        }
+        if (logger.isLoggable(Level.INFO)) {
+          logger.log(
+              Level.INFO,
+              "Shared secret generated by server: "
+                  + Util.toHexString(secretBuffer, 0, secretLength, ":"));
+        }
+        // The session outlives the pooled buffer, so it gets its own copy
+        return ByteString.copyFrom(secretBuffer, 0, secretLength);
+      } finally {
+        keyAgreementPool.releaseSecretBuffer(secretBuffer);
+        keyAgreementPool.release(keyAgreement);
+      }
     }
   }
 }
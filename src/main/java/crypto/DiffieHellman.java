@@ -12,6 +12,7 @@ import java.security.spec.X509EncodedKeySpec;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.KeyAgreement;
+import javax.crypto.ShortBufferException;
 import javax.crypto.interfaces.DHPublicKey;
 import javax.crypto.spec.DHParameterSpec;
 
@@ -37,6 +38,11 @@ public class DiffieHellman {
     return "DH";
   }
 
+  /** Returns the length of the longest shared secret, the one of an 8192-bit group. */
+  protected int getMaxSecretLength() {
+    return 1024;
+  }
+
   protected DiffieHellman() {
     keyPairGeneratorAlgorithm = getKeyPairGeneratorAlgorithm();
     keyAgreementAlgorithm = getKeyAgreementAlgorithm();
@@ -88,7 +94,7 @@ public class DiffieHellman {
    */
   public KeyAgreement getKeyAgreement(KeyPair keyPair) {
     try {
-      KeyAgreement keyAgreement = KeyAgreement.getInstance(keyAgreementAlgorithm);
+      KeyAgreement keyAgreement = newKeyAgreement();
       keyAgreement.init(keyPair.getPrivate());
       return keyAgreement;
     } catch (NoSuchAlgorithmException | InvalidKeyException e) {
@@ -97,6 +103,27 @@ public class DiffieHellman {
     return null;
   }
 
+  /**
+   * Re-initializes a key agreement from a key pair, resetting any previous agreement.
+   *
+   * @param keyAgreement the key agreement to re-initialize.
+   * @param keyPair the key pair.
+   */
+  public boolean initKeyAgreement(KeyAgreement keyAgreement, KeyPair keyPair) {
+    try {
+      keyAgreement.init(keyPair.getPrivate());
+      return true;
+    } catch (InvalidKeyException e) {
+      handleErrors(e);
+    }
+    return false;
+  }
+
+  /** Creates an uninitialized key agreement. */
+  protected KeyAgreement newKeyAgreement() throws NoSuchAlgorithmException {
+    return KeyAgreement.getInstance(keyAgreementAlgorithm);
+  }
+
   /**
    * Parses peer's raw public key into an internal public key representation.
    *
@@ -130,6 +157,41 @@ public class DiffieHellman {
     return false;
   }
 
+  /**
+   * Generates the shared secret into a buffer, then resets the key agreement to its initialized
+   * state.
+   *
+   * @param keyAgreement the key agreement which has verified the peer's public key.
+   * @param out the buffer receiving the shared secret.
+   * @param offset the offset in the buffer where the shared secret is written.
+   * @return the length of the shared secret, or {@code -1} if it could not be generated.
+   */
+  public int generateSecret(KeyAgreement keyAgreement, byte[] out, int offset) {
+    try {
+      return keyAgreement.generateSecret(out, offset);
+    } catch (ShortBufferException | IllegalStateException e) {
+      handleErrors(e);
+    }
+    return -1;
+  }
+
+  /**
+   * Checks whether two public keys share the same domain parameters.
+   *
+   * @param publicKey the first public key.
+   * @param otherPublicKey the second public key.
+   */
+  public boolean isSameParameters(PublicKey publicKey, PublicKey otherPublicKey) {
+    try {
+      DHParameterSpec params = ((DHPublicKey) publicKey).getParams();
+      DHParameterSpec otherParams = ((DHPublicKey) otherPublicKey).getParams();
+      return params.getP().equals(otherParams.getP()) && params.getG().equals(otherParams.getG());
+    } catch (ClassCastException e) {
+      handleErrors(e);
+    }
+    return false;
+  }
+
   protected void handleErrors(Exception e) {
     logger.log(Level.SEVERE, e.getMessage(), e);
   }
@@ -36,7 +36,13 @@ public class EllipticCurveDiffieHellman extends DiffieHellman {
     return "EC";
   }
 
-  private EllipticCurveDiffieHellman() {
+  /** Returns the length of the longest shared secret, the one of a 521-bit curve. */
+  @Override
+  protected int getMaxSecretLength() {
+    return 66;
+  }
+
+  protected EllipticCurveDiffieHellman() {
     super();
     populateSupportedCurves();
   }
@@ -110,4 +116,22 @@ public class EllipticCurveDiffieHellman extends DiffieHellman {
     }
     return null;
   }
+
+  @Override
+  public boolean isSameParameters(PublicKey publicKey, PublicKey otherPublicKey) {
+    try {
+      return isSameParameters(
+          ((ECPublicKey) publicKey).getParams(), ((ECPublicKey) otherPublicKey).getParams());
+    } catch (ClassCastException e) {
+      handleErrors(e);
+    }
+    return false;
+  }
+
+  protected static boolean isSameParameters(ECParameterSpec params, ECParameterSpec otherParams) {
+    return params.getCurve().equals(otherParams.getCurve())
+        && params.getGenerator().equals(otherParams.getGenerator())
+        && params.getOrder().equals(otherParams.getOrder())
+        && params.getCofactor() == otherParams.getCofactor();
+  }
 }
@@ -0,0 +1,144 @@
+package crypto;
+
+import com.google.protobuf.ByteString;
+import crypto.CryptoOuterClass.Session;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps sessions in the memory of a single server.
+ *
+ * <p>The sessions are also indexed by expiry, so that expired sessions are purged as they expire
+ * and, once the store is full, the session expiring soonest makes room for a new one, both in
+ * logarithmic time.
+ */
+public class InMemorySessionBackend implements SessionBackend {
+  private static final Logger logger = Logger.getLogger(InMemorySessionBackend.class.getName());
+
+  private static final int DEFAULT_MAX_SESSIONS = 1 << 20;
+
+  private final Map<ByteString, Session> sessions = new ConcurrentHashMap<>();
+  // Sessions by expiry, may still hold sessions since replaced or removed
+  private final ConcurrentSkipListMap<ExpiryKey, Session> expiries = new ConcurrentSkipListMap<>();
+  private final AtomicLong sequence = new AtomicLong();
+  private final int maxSessions;
+
+  /** Orders sessions by expiry, then by insertion. */
+  private record ExpiryKey(long expiresAtMillis, long sequence) implements Comparable<ExpiryKey> {
+    @Override
+    public int compareTo(ExpiryKey other) {
+      int cmp = Long.compare(expiresAtMillis, other.expiresAtMillis);
+      return cmp != 0 ? cmp : Long.compare(sequence, other.sequence);
+    }
+  }
+
+  /** Creates a session backend holding up to 2^20 sessions. */
+  public InMemorySessionBackend() {
+    this(DEFAULT_MAX_SESSIONS);
+  }
+
+  /**
+   * Creates a session backend holding a bounded number of sessions.
+   *
+   * @param maxSessions the maximum number of sessions kept, further sessions evict the ones
+   *     expiring soonest.
+   */
+  public InMemorySessionBackend(int maxSessions) {
+    if (maxSessions <= 0) {
+      throw new IllegalArgumentException("Max sessions must be positive");
+    }
+    this.maxSessions = maxSessions;
+  }
+
+  @Override
+  public void put(Session session) {
+    makeRoomFor(session.getSessionId());
+    sessions.put(session.getSessionId(), session);
+    index(session);
+  }
+
+  /**
+   * Stores a session unless another session with the same id has not expired yet.
+   *
+   * @param session the session to store.
+   * @return whether the session was stored.
+   */
+  public boolean putIfAbsent(Session session) {
+    makeRoomFor(session.getSessionId());
+    Session stored =
+        sessions.compute(
+            session.getSessionId(),
+            (sessionId, existing) ->
+                existing == null || isExpired(existing) ? session : existing);
+    if (stored != session) {
+      return false;
+    }
+    index(session);
+    return true;
+  }
+
+  @Override
+  public Session get(ByteString sessionId) {
+    Session session = sessions.get(sessionId);
+    if (session == null) {
+      return null;
+    }
+    if (isExpired(session)) {
+      sessions.remove(sessionId, session);
+      return null;
+    }
+    return session;
+  }
+
+  @Override
+  public void forEach(Consumer<Session> action) {
+    for (Session session : sessions.values()) {
+      if (!isExpired(session)) {
+        action.accept(session);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    sessions.clear();
+    expiries.clear();
+  }
+
+  private void index(Session session) {
+    expiries.put(
+        new ExpiryKey(session.getExpiresAtMillis(), sequence.incrementAndGet()), session);
+  }
+
+  /** Purges the expired sessions, then evicts the sessions expiring soonest while full. */
+  private void makeRoomFor(ByteString sessionId) {
+    long now = System.currentTimeMillis();
+    Map.Entry<ExpiryKey, Session> first;
+    while ((first = expiries.firstEntry()) != null && first.getKey().expiresAtMillis() <= now) {
+      evict(first);
+    }
+    while (sessions.size() >= maxSessions
+        && !sessions.containsKey(sessionId)
+        && (first = expiries.firstEntry()) != null) {
+      if (evict(first)) {
+        logger.log(Level.FINE, "Session store is full, evicted the session expiring soonest");
+      }
+    }
+  }
+
+  /** Removes an indexed session, returns whether it was still stored. */
+  private boolean evict(Map.Entry<ExpiryKey, Session> entry) {
+    Session session = expiries.remove(entry.getKey());
+    // Null if evicted concurrently
+    return session != null && sessions.remove(session.getSessionId(), session);
+  }
+
+  private static boolean isExpired(Session session) {
+    return session.getExpiresAtMillis() <= System.currentTimeMillis();
+  }
+}
@@ -0,0 +1,85 @@
+package crypto;
+
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.crypto.KeyAgreement;
+
+/**
+ * Pools the key agreements of an algorithm and the buffers receiving their shared secrets.
+ *
+ * <p>Acquired key agreements are re-initialized with the caller's key pair, which resets whatever
+ * state a previous handshake left behind. Secret buffers are zeroed when they are released. When
+ * the pool is empty new instances are created, and instances released into a full pool are
+ * dropped.
+ */
+public class KeyAgreementPool {
+  private final DiffieHellman algoInst;
+  private final BlockingQueue<KeyAgreement> keyAgreements;
+  private final BlockingQueue<byte[]> secretBuffers;
+
+  /**
+   * Creates an empty pool.
+   *
+   * @param algoInst the algorithm of the pooled key agreements.
+   * @param capacity the maximum number of key agreements and of secret buffers kept.
+   */
+  public KeyAgreementPool(DiffieHellman algoInst, int capacity) {
+    this.algoInst = algoInst;
+    this.keyAgreements = new ArrayBlockingQueue<>(capacity);
+    this.secretBuffers = new ArrayBlockingQueue<>(capacity);
+  }
+
+  /**
+   * Takes a key agreement from the pool and initializes it from a key pair.
+   *
+   * @param keyPair the key pair.
+   * @return the key agreement, or {@code null} if it could not be initialized.
+   */
+  public KeyAgreement acquire(KeyPair keyPair) {
+    KeyAgreement keyAgreement = keyAgreements.poll();
+    if (keyAgreement == null) {
+      try {
+        keyAgreement = algoInst.newKeyAgreement();
+      } catch (NoSuchAlgorithmException e) {
+        algoInst.handleErrors(e);
+        return null;
+      }
+    }
+    if (!algoInst.initKeyAgreement(keyAgreement, keyPair)) {
+      return null;
+    }
+    return keyAgreement;
+  }
+
+  /**
+   * Returns a key agreement to the pool.
+   *
+   * @param keyAgreement the key agreement, {@code null} is ignored.
+   */
+  public void release(KeyAgreement keyAgreement) {
+    if (keyAgreement != null) {
+      keyAgreements.offer(keyAgreement);
+    }
+  }
+
+  /** Takes a buffer large enough for any shared secret of the algorithm. */
+  public byte[] acquireSecretBuffer() {
+    byte[] secretBuffer = secretBuffers.poll();
+    return secretBuffer != null ? secretBuffer : new byte[algoInst.getMaxSecretLength()];
+  }
+
+  /**
+   * Zeroes a secret buffer and returns it to the pool.
+   *
+   * @param secretBuffer the buffer, {@code null} is ignored.
+   */
+  public void releaseSecretBuffer(byte[] secretBuffer) {
+    if (secretBuffer != null) {
+      Arrays.fill(secretBuffer, (byte) 0);
+      secretBuffers.offer(secretBuffer);
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package crypto;
+
+import com.google.protobuf.ByteString;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rotates a semi-static server key pair.
+ *
+ * <p>Readers take the active key without locking. The next key pair is prepared on a background
+ * thread and swapped in atomically once the active key has expired or has been used too many
+ * times. Until the next key pair is ready, the active key keeps being served.
+ *
+ * <p>Epochs start at a random value and count up, so that the epochs of different managers, e.g.
+ * of replicas behind one load balancer or of the cipher suites of one server, do not collide.
+ */
+public class KeyRotationManager implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(KeyRotationManager.class.getName());
+  private static final SecureRandom random = new SecureRandom();
+
+  /** A server key pair together with its rotation epoch. */
+  public static class ServerKey {
+    private final KeyPair keyPair;
+    private final ByteString encodedPublicKey;
+    private final long epoch;
+    private final long expiresAtNanos;
+    private final AtomicLong uses = new AtomicLong();
+
+    private ServerKey(KeyPair keyPair, long epoch, long expiresAtNanos) {
+      this.keyPair = keyPair;
+      this.encodedPublicKey = Util.wrapOwned(keyPair.getPublic().getEncoded());
+      this.epoch = epoch;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+
+    public KeyPair getKeyPair() {
+      return keyPair;
+    }
+
+    /** Returns the encoded public key, shared by all handshakes using this key. */
+    public ByteString getEncodedPublicKey() {
+      return encodedPublicKey;
+    }
+
+    /** Returns the key's epoch, {@code 0} for a key pair which is not shared between requests. */
+    public long getEpoch() {
+      return epoch;
+    }
+  }
+
+  private final DiffieHellman algoInst;
+  private final long rotationPeriodNanos;
+  private final long maxUses;
+  private final AtomicReference<ServerKey> active = new AtomicReference<>();
+  private final AtomicReference<KeyPair> next = new AtomicReference<>();
+  private final AtomicBoolean preparing = new AtomicBoolean();
+  private final ExecutorService executor;
+
+  /**
+   * Creates a key rotation manager.
+   *
+   * @param algoInst the algorithm used to generate the key pairs.
+   * @param rotationPeriodSeconds the number of seconds a key pair stays active.
+   * @param maxUses the number of handshakes a key pair is used for, {@code 0} for no limit.
+   */
+  public KeyRotationManager(DiffieHellman algoInst, long rotationPeriodSeconds, long maxUses) {
+    if (rotationPeriodSeconds <= 0 || maxUses < 0) {
+      throw new IllegalArgumentException(
+          "Rotation period must be positive and max uses must not be negative");
+    }
+    this.algoInst = algoInst;
+    this.rotationPeriodNanos = TimeUnit.SECONDS.toNanos(rotationPeriodSeconds);
+    this.maxUses = maxUses;
+    this.executor =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "key-rotation");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Returns the server key to use against a peer's public key.
+   *
+   * <p>A peer whose public key uses other domain parameters than the rotated key pair gets a fresh
+   * key pair with epoch {@code 0}.
+   *
+   * @param peerPublicKey the peer's public key.
+   */
+  public ServerKey acquire(PublicKey peerPublicKey) {
+    ServerKey key = active.get();
+    if (key == null) {
+      key = seed(peerPublicKey);
+      if (key == null) {
+        return null;
+      }
+    }
+    if (!algoInst.isSameParameters(key.keyPair.getPublic(), peerPublicKey)) {
+      KeyPair keyPair = algoInst.generateKeyPair(peerPublicKey);
+      return keyPair == null ? null : new ServerKey(keyPair, 0, 0);
+    }
+    long uses = key.uses.incrementAndGet();
+    if ((maxUses > 0 && uses > maxUses) || System.nanoTime() - key.expiresAtNanos >= 0) {
+      key = rotate(key);
+    }
+    return key;
+  }
+
+  private ServerKey seed(PublicKey peerPublicKey) {
+    KeyPair keyPair = algoInst.generateKeyPair(peerPublicKey);
+    if (keyPair == null) {
+      return null;
+    }
+    ServerKey seeded = activate(keyPair, random.nextLong());
+    if (!active.compareAndSet(null, seeded)) {
+      return active.get();
+    }
+    prepareNext();
+    return seeded;
+  }
+
+  private ServerKey rotate(ServerKey expired) {
+    KeyPair keyPair = next.getAndSet(null);
+    if (keyPair == null) {
+      // The next key pair is still being prepared, keep serving the expired one meanwhile
+      prepareNext();
+      return expired;
+    }
+    // Derived from the replaced key, so that a lost race does not skip an epoch
+    ServerKey rotated = activate(keyPair, expired.epoch + 1);
+    if (!active.compareAndSet(expired, rotated)) {
+      // Another reader has already rotated, hand the key pair back for the next rotation
+      next.compareAndSet(null, keyPair);
+      return active.get();
+    }
+    logger.log(Level.INFO, "Rotated server key to epoch " + rotated.epoch);
+    rotated.uses.incrementAndGet();
+    prepareNext();
+    return rotated;
+  }
+
+  private ServerKey activate(KeyPair keyPair, long epoch) {
+    long expiresAtNanos = System.nanoTime() + rotationPeriodNanos;
+    // Epoch 0 stands for a key pair which is not shared
+    return new ServerKey(keyPair, epoch == 0 ? 1 : epoch, expiresAtNanos);
+  }
+
+  private void prepareNext() {
+    if (!preparing.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(
+          () -> {
+            try {
+              KeyPair keyPair = algoInst.generateKeyPair(active.get().keyPair.getPublic());
+              if (keyPair != null) {
+                next.set(keyPair);
+              }
+            } finally {
+              preparing.set(false);
+            }
+          });
+    } catch (RuntimeException e) {
+      preparing.set(false);
+      logger.log(Level.WARNING, e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Waits until the key pair preparation scheduled so far is over.
+   *
+   * @return {@code true} if a next key pair is ready for the next rotation.
+   */
+  boolean awaitNextKey(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    // The executor runs one task at a time in submission order
+    executor.submit(() -> {}).get(timeout, unit);
+    return next.get() != null;
+  }
+
+  /** Stops preparing key pairs. */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,319 @@
+package crypto;
+
+import java.math.BigInteger;
+
+/**
+ * Constant-time scalar multiplication on the P-256 curve y^2 = x^3 - 3x + b.
+ *
+ * <p>Points are added in projective coordinates with the complete formulas of Renes, Costello and
+ * Batina ("Complete addition formulas for prime order elliptic curves", algorithm 4), which also
+ * double points and handle the point at infinity without branching. Base point multiples come
+ * from a table built once when the class is loaded: for each of the 64 4-bit windows of a scalar
+ * it holds the 16 multiples of the base point shifted to that window, so a key pair costs 64
+ * additions and no doubling. Table entries are read with a full constant-time scan.
+ *
+ * <p>Each thread works in its own {@link Workspace}, nothing is allocated per operation.
+ */
+final class P256 {
+  static final int SCALAR_LENGTH = 32;
+  /** The length of an uncompressed point encoding, {@code 04 || X || Y}. */
+  static final int POINT_LENGTH = 1 + 2 * P256Field.BYTES;
+
+  static final BigInteger ORDER =
+      new BigInteger("FFFFFFFF00000000FFFFFFFFFFFFFFFFBCE6FAADA7179E84F3B9CAC2FC632551", 16);
+
+  private static final int LIMBS = P256Field.LIMBS;
+  private static final int POINT_LIMBS = 3 * LIMBS;
+  private static final int WINDOW_BITS = 4;
+  private static final int WINDOW_SIZE = 1 << WINDOW_BITS;
+  private static final int WINDOWS = 8 * SCALAR_LENGTH / WINDOW_BITS;
+
+  private static final long[] B =
+      P256Field.toMontgomery(
+          new BigInteger("5AC635D8AA3A93E7B3EBBD55769886BC651D06B0CC53B0F63BCE3C3E27D2604B", 16));
+  private static final long[] GX =
+      P256Field.toMontgomery(
+          new BigInteger("6B17D1F2E12C4247F8BCE6E563A440F277037D812DEB33A0F4A13945D898C296", 16));
+  private static final long[] GY =
+      P256Field.toMontgomery(
+          new BigInteger("4FE342E2FE1A7F9B8EE7EB4A7C0F9E162BCE33576B315ECECBB6406837BF51F5", 16));
+  private static final byte[] ORDER_BYTES = toBytes(ORDER);
+
+  private static final ThreadLocal<Workspace> workspaces =
+      ThreadLocal.withInitial(Workspace::new);
+  // initialized last for its' usage of above static variables
+  private static final long[] baseTable = buildBaseTable();
+
+  /** Scratch space of a thread, a point is three {@link P256Field#LIMBS} coordinates. */
+  private static class Workspace {
+    final long[] t = new long[P256Field.SCRATCH_LENGTH];
+    final long[] t0 = new long[LIMBS];
+    final long[] t1 = new long[LIMBS];
+    final long[] t2 = new long[LIMBS];
+    final long[] t3 = new long[LIMBS];
+    final long[] t4 = new long[LIMBS];
+    final long[] x3 = new long[LIMBS];
+    final long[] y3 = new long[LIMBS];
+    final long[] z3 = new long[LIMBS];
+    final long[] accX = new long[LIMBS];
+    final long[] accY = new long[LIMBS];
+    final long[] accZ = new long[LIMBS];
+    final long[] selX = new long[LIMBS];
+    final long[] selY = new long[LIMBS];
+    final long[] selZ = new long[LIMBS];
+    final long[] table = new long[WINDOW_SIZE * POINT_LIMBS];
+  }
+
+  private P256() {}
+
+  /**
+   * Checks that a 32-byte big-endian scalar lies in [1, n - 1], n being the group order.
+   *
+   * @param scalar the scalar, compared in constant time.
+   */
+  static boolean isValidScalar(byte[] scalar) {
+    int borrow = 0;
+    int nonZero = 0;
+    for (int i = SCALAR_LENGTH - 1; i >= 0; i--) {
+      int diff = (scalar[i] & 0xFF) - (ORDER_BYTES[i] & 0xFF) - borrow;
+      borrow = (diff >>> 31) & 1;
+      nonZero |= scalar[i];
+    }
+    return (borrow & (((nonZero & 0xFF) + 0xFF) >>> 8)) == 1;
+  }
+
+  /**
+   * Multiplies the base point by a valid scalar.
+   *
+   * @param scalar the 32-byte big-endian scalar.
+   * @param x receives the affine x coordinate, in Montgomery form.
+   * @param y receives the affine y coordinate, in Montgomery form.
+   */
+  static void multiplyBase(byte[] scalar, long[] x, long[] y) {
+    Workspace w = workspaces.get();
+    setInfinity(w.accX, w.accY, w.accZ);
+    for (int i = 0; i < WINDOWS; i++) {
+      select(w, baseTable, i * WINDOW_SIZE * POINT_LIMBS, window(scalar, i));
+      add(w, w.accX, w.accY, w.accZ, w.selX, w.selY, w.selZ, w.accX, w.accY, w.accZ);
+    }
+    toAffine(w, x, y);
+  }
+
+  /**
+   * Multiplies a point by a valid scalar and encodes the x coordinate of the product.
+   *
+   * @param scalar the 32-byte big-endian scalar.
+   * @param x the point's affine x coordinate, in Montgomery form.
+   * @param y the point's affine y coordinate, in Montgomery form.
+   * @param out receives the x coordinate as a 32-byte big-endian integer.
+   * @param offset the offset in {@code out}.
+   * @return {@code false} if the product is the point at infinity.
+   */
+  static boolean multiply(byte[] scalar, long[] x, long[] y, byte[] out, int offset) {
+    Workspace w = workspaces.get();
+    long[] table = w.table;
+    // table[j] = j * point, table[0] being the point at infinity
+    setInfinity(w.accX, w.accY, w.accZ);
+    store(table, 0, w.accX, w.accY, w.accZ);
+    store(table, POINT_LIMBS, x, y, P256Field.ONE);
+    for (int j = 2; j < WINDOW_SIZE; j++) {
+      load(table, (j - 1) * POINT_LIMBS, w.selX, w.selY, w.selZ);
+      add(w, w.selX, w.selY, w.selZ, x, y, P256Field.ONE, w.selX, w.selY, w.selZ);
+      store(table, j * POINT_LIMBS, w.selX, w.selY, w.selZ);
+    }
+
+    // Fixed 4-bit windows from the most significant one
+    for (int i = WINDOWS - 1; i >= 0; i--) {
+      for (int k = 0; k < WINDOW_BITS; k++) {
+        add(w, w.accX, w.accY, w.accZ, w.accX, w.accY, w.accZ, w.accX, w.accY, w.accZ);
+      }
+      select(w, table, 0, window(scalar, i));
+      add(w, w.accX, w.accY, w.accZ, w.selX, w.selY, w.selZ, w.accX, w.accY, w.accZ);
+    }
+    boolean finite = !P256Field.isZero(w.accZ);
+    toAffine(w, w.t0, w.t1);
+    P256Field.encode(out, offset, w.t0, w.t2, w.t);
+    return finite;
+  }
+
+  /**
+   * Decodes and validates an uncompressed point.
+   *
+   * @param buf the buffer holding {@code 04 || X || Y}.
+   * @param offset the offset of the encoding in {@code buf}.
+   * @param x receives the affine x coordinate, in Montgomery form.
+   * @param y receives the affine y coordinate, in Montgomery form.
+   * @return {@code false} if the encoding is not a point of the curve.
+   */
+  static boolean decodePoint(byte[] buf, int offset, long[] x, long[] y) {
+    if (buf.length - offset < POINT_LENGTH || buf[offset] != 0x04) {
+      return false;
+    }
+    Workspace w = workspaces.get();
+    if (!P256Field.decode(x, buf, offset + 1, w.t)
+        || !P256Field.decode(y, buf, offset + 1 + P256Field.BYTES, w.t)) {
+      return false;
+    }
+    // y^2 = x^3 - 3x + b
+    P256Field.mul(w.t0, y, y, w.t);
+    P256Field.mul(w.t1, x, x, w.t);
+    P256Field.mul(w.t1, w.t1, x, w.t);
+    P256Field.add(w.t2, x, x, w.t);
+    P256Field.add(w.t2, w.t2, x, w.t);
+    P256Field.sub(w.t1, w.t1, w.t2);
+    P256Field.add(w.t1, w.t1, B, w.t);
+    return P256Field.equal(w.t0, w.t1);
+  }
+
+  /** Encodes an affine point as {@code 04 || X || Y}. */
+  static void encodePoint(long[] x, long[] y, byte[] buf, int offset) {
+    Workspace w = workspaces.get();
+    buf[offset] = 0x04;
+    P256Field.encode(buf, offset + 1, x, w.t0, w.t);
+    P256Field.encode(buf, offset + 1 + P256Field.BYTES, y, w.t0, w.t);
+  }
+
+  /** Converts a non-negative integer below 2^256 into a 32-byte big-endian array. */
+  static byte[] toBytes(BigInteger value) {
+    byte[] out = new byte[SCALAR_LENGTH];
+    byte[] magnitude = value.toByteArray();
+    int length = Math.min(magnitude.length, SCALAR_LENGTH);
+    System.arraycopy(magnitude, magnitude.length - length, out, SCALAR_LENGTH - length, length);
+    return out;
+  }
+
+  private static long[] buildBaseTable() {
+    Workspace w = new Workspace();
+    long[] table = new long[WINDOWS * WINDOW_SIZE * POINT_LIMBS];
+    // (accX, accY, accZ) walks through 16^i * G, (selX, selY, selZ) through j * 16^i * G
+    P256Field.copy(w.accX, GX);
+    P256Field.copy(w.accY, GY);
+    P256Field.copy(w.accZ, P256Field.ONE);
+    for (int i = 0; i < WINDOWS; i++) {
+      int windowOffset = i * WINDOW_SIZE * POINT_LIMBS;
+      setInfinity(w.selX, w.selY, w.selZ);
+      for (int j = 0; j < WINDOW_SIZE; j++) {
+        store(table, windowOffset + j * POINT_LIMBS, w.selX, w.selY, w.selZ);
+        add(w, w.selX, w.selY, w.selZ, w.accX, w.accY, w.accZ, w.selX, w.selY, w.selZ);
+      }
+      P256Field.copy(w.accX, w.selX);
+      P256Field.copy(w.accY, w.selY);
+      P256Field.copy(w.accZ, w.selZ);
+    }
+    return table;
+  }
+
+  /** Returns the 4-bit window of a 32-byte big-endian scalar, window 0 being the lowest. */
+  private static int window(byte[] scalar, int i) {
+    int b = scalar[SCALAR_LENGTH - 1 - i / 2] & 0xFF;
+    return (b >>> (WINDOW_BITS * (i & 1))) & (WINDOW_SIZE - 1);
+  }
+
+  /** Loads the entry of a window into the selected point, scanning all entries. */
+  private static void select(Workspace w, long[] table, int offset, int index) {
+    setInfinity(w.selX, w.selY, w.selZ);
+    for (int j = 0; j < WINDOW_SIZE; j++) {
+      long mask = ((long) (j ^ index) - 1) >> 63;
+      int entry = offset + j * POINT_LIMBS;
+      P256Field.select(w.selX, table, entry, mask);
+      P256Field.select(w.selY, table, entry + LIMBS, mask);
+      P256Field.select(w.selZ, table, entry + 2 * LIMBS, mask);
+    }
+  }
+
+  private static void setInfinity(long[] x, long[] y, long[] z) {
+    for (int i = 0; i < LIMBS; i++) {
+      x[i] = 0;
+      z[i] = 0;
+    }
+    P256Field.copy(y, P256Field.ONE);
+  }
+
+  private static void store(long[] table, int offset, long[] x, long[] y, long[] z) {
+    System.arraycopy(x, 0, table, offset, LIMBS);
+    System.arraycopy(y, 0, table, offset + LIMBS, LIMBS);
+    System.arraycopy(z, 0, table, offset + 2 * LIMBS, LIMBS);
+  }
+
+  private static void load(long[] table, int offset, long[] x, long[] y, long[] z) {
+    System.arraycopy(table, offset, x, 0, LIMBS);
+    System.arraycopy(table, offset + LIMBS, y, 0, LIMBS);
+    System.arraycopy(table, offset + 2 * LIMBS, z, 0, LIMBS);
+  }
+
+  /** Converts the accumulated point to affine coordinates, infinity becomes (0, 0). */
+  private static void toAffine(Workspace w, long[] x, long[] y) {
+    P256Field.inv(w.t3, w.accZ, w.t4, w.t);
+    P256Field.mul(x, w.accX, w.t3, w.t);
+    P256Field.mul(y, w.accY, w.t3, w.t);
+  }
+
+  /** Adds two projective points, the output may alias either input. */
+  private static void add(
+      Workspace w,
+      long[] x1,
+      long[] y1,
+      long[] z1,
+      long[] x2,
+      long[] y2,
+      long[] z2,
+      long[] outX,
+      long[] outY,
+      long[] outZ) {
+    long[] t = w.t;
+    long[] t0 = w.t0;
+    long[] t1 = w.t1;
+    long[] t2 = w.t2;
+    long[] t3 = w.t3;
+    long[] t4 = w.t4;
+    long[] x3 = w.x3;
+    long[] y3 = w.y3;
+    long[] z3 = w.z3;
+    P256Field.mul(t0, x1, x2, t); // t0 := X1 * X2
+    P256Field.mul(t1, y1, y2, t); // t1 := Y1 * Y2
+    P256Field.mul(t2, z1, z2, t); // t2 := Z1 * Z2
+    P256Field.add(t3, x1, y1, t); // t3 := X1 + Y1
+    P256Field.add(t4, x2, y2, t); // t4 := X2 + Y2
+    P256Field.mul(t3, t3, t4, t); // t3 := t3 * t4
+    P256Field.add(t4, t0, t1, t); // t4 := t0 + t1
+    P256Field.sub(t3, t3, t4); // t3 := t3 - t4
+    P256Field.add(t4, y1, z1, t); // t4 := Y1 + Z1
+    P256Field.add(x3, y2, z2, t); // X3 := Y2 + Z2
+    P256Field.mul(t4, t4, x3, t); // t4 := t4 * X3
+    P256Field.add(x3, t1, t2, t); // X3 := t1 + t2
+    P256Field.sub(t4, t4, x3); // t4 := t4 - X3
+    P256Field.add(x3, x1, z1, t); // X3 := X1 + Z1
+    P256Field.add(y3, x2, z2, t); // Y3 := X2 + Z2
+    P256Field.mul(x3, x3, y3, t); // X3 := X3 * Y3
+    P256Field.add(y3, t0, t2, t); // Y3 := t0 + t2
+    P256Field.sub(y3, x3, y3); // Y3 := X3 - Y3
+    P256Field.mul(z3, B, t2, t); // Z3 := b * t2
+    P256Field.sub(x3, y3, z3); // X3 := Y3 - Z3
+    P256Field.add(z3, x3, x3, t); // Z3 := X3 + X3
+    P256Field.add(x3, x3, z3, t); // X3 := X3 + Z3
+    P256Field.sub(z3, t1, x3); // Z3 := t1 - X3
+    P256Field.add(x3, t1, x3, t); // X3 := t1 + X3
+    P256Field.mul(y3, B, y3, t); // Y3 := b * Y3
+    P256Field.add(t1, t2, t2, t); // t1 := t2 + t2
+    P256Field.add(t2, t1, t2, t); // t2 := t1 + t2
+    P256Field.sub(y3, y3, t2); // Y3 := Y3 - t2
+    P256Field.sub(y3, y3, t0); // Y3 := Y3 - t0
+    P256Field.add(t1, y3, y3, t); // t1 := Y3 + Y3
+    P256Field.add(y3, t1, y3, t); // Y3 := t1 + Y3
+    P256Field.add(t1, t0, t0, t); // t1 := t0 + t0
+    P256Field.add(t0, t1, t0, t); // t0 := t1 + t0
+    P256Field.sub(t0, t0, t2); // t0 := t0 - t2
+    P256Field.mul(t1, t4, y3, t); // t1 := t4 * Y3
+    P256Field.mul(t2, t0, y3, t); // t2 := t0 * Y3
+    P256Field.mul(y3, x3, z3, t); // Y3 := X3 * Z3
+    P256Field.add(y3, y3, t2, t); // Y3 := Y3 + t2
+    P256Field.mul(x3, t3, x3, t); // X3 := t3 * X3
+    P256Field.sub(x3, x3, t1); // X3 := X3 - t1
+    P256Field.mul(z3, t4, z3, t); // Z3 := t4 * Z3
+    P256Field.mul(t1, t3, t0, t); // t1 := t3 * t0
+    P256Field.add(z3, z3, t1, t); // Z3 := Z3 + t1
+    P256Field.copy(outX, x3);
+    P256Field.copy(outY, y3);
+    P256Field.copy(outZ, z3);
+  }
+}
@@ -0,0 +1,388 @@
+package crypto;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.InvalidParameterSpecException;
+import java.util.Arrays;
+import javax.crypto.KeyAgreement;
+import javax.crypto.KeyAgreementSpi;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The Elliptic-curve Diffie-Hellman algorithm, running secp256r1 on a pure-Java engine.
+ *
+ * <p>Key pairs, peer public keys and key agreements of secp256r1 are handled by {@link P256}
+ * directly on raw point encodings, other curves go through the JDK providers like {@link
+ * EllipticCurveDiffieHellman} does.
+ */
+public class P256DiffieHellman extends EllipticCurveDiffieHellman {
+  private static final String CURVE_NAME = "secp256r1";
+  // X.509 SubjectPublicKeyInfo header of an uncompressed secp256r1 point:
+  // SEQUENCE { SEQUENCE { id-ecPublicKey, prime256v1 }, BIT STRING { 04 || X || Y } }
+  private static final byte[] X509_PREFIX = {
+    0x30, 0x59, 0x30, 0x13, 0x06, 0x07, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x02, 0x01,
+    0x06, 0x08, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x03, 0x01, 0x07, 0x03, 0x42, 0x00,
+  };
+  private static final ECParameterSpec params = getParameterSpec();
+  private static final Provider provider =
+      new Provider("P256", "1.0", "Pure-Java secp256r1 key agreement") {};
+  private static final SecureRandom random = new SecureRandom();
+  private static final P256DiffieHellman instance =
+      new P256DiffieHellman(); // initialized last for its' usage of above static variables
+
+  private P256DiffieHellman() {
+    super();
+  }
+
+  public static P256DiffieHellman getInstance() {
+    return instance;
+  }
+
+  private static ECParameterSpec getParameterSpec() {
+    try {
+      AlgorithmParameters algorithmParameters = AlgorithmParameters.getInstance("EC");
+      algorithmParameters.init(new ECGenParameterSpec(CURVE_NAME));
+      return algorithmParameters.getParameterSpec(ECParameterSpec.class);
+    } catch (NoSuchAlgorithmException | InvalidParameterSpecException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static boolean isP256(Key key) {
+    return key instanceof P256PublicKey
+        || key instanceof P256PrivateKey
+        || (key instanceof ECKey && isSameParameters(((ECKey) key).getParams(), params));
+  }
+
+  @Override
+  public KeyPair generateKeyPair(String curveName) {
+    if (!CURVE_NAME.equals(curveName)) {
+      return super.generateKeyPair(curveName);
+    }
+    return generateP256KeyPair();
+  }
+
+  @Override
+  public KeyPair generateKeyPair(PublicKey peerPublicKey) {
+    if (!isP256(peerPublicKey)) {
+      return super.generateKeyPair(peerPublicKey);
+    }
+    return generateP256KeyPair();
+  }
+
+  private KeyPair generateP256KeyPair() {
+    byte[] scalar = new byte[P256.SCALAR_LENGTH];
+    do {
+      random.nextBytes(scalar);
+    } while (!P256.isValidScalar(scalar));
+    long[] x = new long[P256Field.LIMBS];
+    long[] y = new long[P256Field.LIMBS];
+    P256.multiplyBase(scalar, x, y);
+    return new KeyPair(new P256PublicKey(x, y), new P256PrivateKey(scalar));
+  }
+
+  /**
+   * Creates a key pair from a private scalar.
+   *
+   * @param scalar the 32-byte big-endian private scalar.
+   * @return the key pair, or {@code null} if the scalar is not in [1, n - 1].
+   */
+  KeyPair generateKeyPair(byte[] scalar) {
+    if (scalar.length != P256.SCALAR_LENGTH || !P256.isValidScalar(scalar)) {
+      return null;
+    }
+    long[] x = new long[P256Field.LIMBS];
+    long[] y = new long[P256Field.LIMBS];
+    P256.multiplyBase(scalar, x, y);
+    return new KeyPair(new P256PublicKey(x, y), new P256PrivateKey(scalar.clone()));
+  }
+
+  @Override
+  public PublicKey getPeerPublicKey(byte[] peerData) {
+    if (peerData.length != X509_PREFIX.length + P256.POINT_LENGTH
+        || !Arrays.equals(peerData, 0, X509_PREFIX.length, X509_PREFIX, 0, X509_PREFIX.length)) {
+      return super.getPeerPublicKey(peerData);
+    }
+    P256PublicKey peerPublicKey = P256PublicKey.decode(peerData, X509_PREFIX.length);
+    if (peerPublicKey == null) {
+      handleErrors(new InvalidKeySpecException("Point is not on the secp256r1 curve"));
+    }
+    return peerPublicKey;
+  }
+
+  @Override
+  protected KeyAgreement newKeyAgreement() {
+    return new P256KeyAgreement();
+  }
+
+  /** A secp256r1 public key, its point being kept as decoded field elements. */
+  static class P256PublicKey implements ECPublicKey {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] encoded;
+    private final long[] x;
+    private final long[] y;
+
+    private P256PublicKey(long[] x, long[] y) {
+      this.x = x;
+      this.y = y;
+      encoded = Arrays.copyOf(X509_PREFIX, X509_PREFIX.length + P256.POINT_LENGTH);
+      P256.encodePoint(x, y, encoded, X509_PREFIX.length);
+    }
+
+    private P256PublicKey(byte[] encoded, long[] x, long[] y) {
+      this.encoded = encoded;
+      this.x = x;
+      this.y = y;
+    }
+
+    /** Decodes and validates a point, returns {@code null} if it is not on the curve. */
+    static P256PublicKey decode(byte[] buf, int pointOffset) {
+      long[] x = new long[P256Field.LIMBS];
+      long[] y = new long[P256Field.LIMBS];
+      if (!P256.decodePoint(buf, pointOffset, x, y)) {
+        return null;
+      }
+      byte[] encoded = Arrays.copyOf(X509_PREFIX, X509_PREFIX.length + P256.POINT_LENGTH);
+      System.arraycopy(buf, pointOffset, encoded, X509_PREFIX.length, P256.POINT_LENGTH);
+      return new P256PublicKey(encoded, x, y);
+    }
+
+    @Override
+    public ECPoint getW() {
+      int offset = X509_PREFIX.length + 1;
+      return new ECPoint(
+          new BigInteger(1, encoded, offset, P256Field.BYTES),
+          new BigInteger(1, encoded, offset + P256Field.BYTES, P256Field.BYTES));
+    }
+
+    @Override
+    public ECParameterSpec getParams() {
+      return params;
+    }
+
+    @Override
+    public String getAlgorithm() {
+      return "EC";
+    }
+
+    @Override
+    public String getFormat() {
+      return "X.509";
+    }
+
+    @Override
+    public byte[] getEncoded() {
+      return encoded.clone();
+    }
+  }
+
+  /** A secp256r1 private key, which has no encoding. */
+  static class P256PrivateKey implements ECPrivateKey {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] scalar;
+
+    private P256PrivateKey(byte[] scalar) {
+      this.scalar = scalar;
+    }
+
+    @Override
+    public BigInteger getS() {
+      return new BigInteger(1, scalar);
+    }
+
+    @Override
+    public ECParameterSpec getParams() {
+      return params;
+    }
+
+    @Override
+    public String getAlgorithm() {
+      return "EC";
+    }
+
+    @Override
+    public String getFormat() {
+      return null;
+    }
+
+    @Override
+    public byte[] getEncoded() {
+      return null;
+    }
+
+    @Override
+    public void destroy() {
+      Arrays.fill(scalar, (byte) 0);
+    }
+
+    @Override
+    public boolean isDestroyed() {
+      return !P256.isValidScalar(scalar);
+    }
+  }
+
+  private static class P256KeyAgreement extends KeyAgreement {
+    P256KeyAgreement() {
+      super(new P256KeyAgreementSpi(), provider, "ECDH");
+    }
+  }
+
+  /**
+   * Agrees on the x coordinate of the shared point for secp256r1 keys, delegates other keys to the
+   * JDK's ECDH implementation.
+   */
+  private static class P256KeyAgreementSpi extends KeyAgreementSpi {
+    private final byte[] scalar = new byte[P256.SCALAR_LENGTH];
+    private final byte[] secret = new byte[P256Field.BYTES];
+    private boolean initialized;
+    private boolean secretReady;
+    private KeyAgreement delegate;
+
+    @Override
+    protected void engineInit(Key key, SecureRandom random) throws InvalidKeyException {
+      reset();
+      initialized = false;
+      delegate = null;
+      if (key instanceof P256PrivateKey) {
+        System.arraycopy(((P256PrivateKey) key).scalar, 0, scalar, 0, P256.SCALAR_LENGTH);
+      } else if (key instanceof ECPrivateKey && isP256(key)) {
+        BigInteger s = ((ECPrivateKey) key).getS();
+        if (s.signum() <= 0 || s.bitLength() > 8 * P256.SCALAR_LENGTH) {
+          throw new InvalidKeyException("Invalid secp256r1 private key");
+        }
+        System.arraycopy(P256.toBytes(s), 0, scalar, 0, P256.SCALAR_LENGTH);
+      } else {
+        try {
+          delegate = KeyAgreement.getInstance("ECDH");
+        } catch (NoSuchAlgorithmException e) {
+          throw new InvalidKeyException(e);
+        }
+        delegate.init(key, random);
+        return;
+      }
+      if (!P256.isValidScalar(scalar)) {
+        throw new InvalidKeyException("Invalid secp256r1 private key");
+      }
+      initialized = true;
+    }
+
+    @Override
+    protected void engineInit(Key key, AlgorithmParameterSpec params, SecureRandom random)
+        throws InvalidKeyException, InvalidAlgorithmParameterException {
+      if (params != null) {
+        throw new InvalidAlgorithmParameterException("No parameters are expected");
+      }
+      engineInit(key, random);
+    }
+
+    @Override
+    protected Key engineDoPhase(Key key, boolean lastPhase) throws InvalidKeyException {
+      if (delegate != null) {
+        return delegate.doPhase(key, lastPhase);
+      }
+      if (!initialized) {
+        throw new IllegalStateException("Key agreement is not initialized");
+      }
+      if (!lastPhase) {
+        throw new IllegalStateException("Only two parties can agree on a secp256r1 secret");
+      }
+      P256PublicKey peerPublicKey;
+      if (key instanceof P256PublicKey) {
+        peerPublicKey = (P256PublicKey) key;
+      } else if (key instanceof ECPublicKey && isP256(key)) {
+        ECPoint w = ((ECPublicKey) key).getW();
+        byte[] point = new byte[P256.POINT_LENGTH];
+        point[0] = 0x04;
+        if (w.equals(ECPoint.POINT_INFINITY)
+            || w.getAffineX().bitLength() > 8 * P256Field.BYTES
+            || w.getAffineY().bitLength() > 8 * P256Field.BYTES) {
+          throw new InvalidKeyException("Point is not on the secp256r1 curve");
+        }
+        System.arraycopy(P256.toBytes(w.getAffineX()), 0, point, 1, P256Field.BYTES);
+        System.arraycopy(
+            P256.toBytes(w.getAffineY()), 0, point, 1 + P256Field.BYTES, P256Field.BYTES);
+        peerPublicKey = P256PublicKey.decode(point, 0);
+      } else {
+        throw new InvalidKeyException("Expected a secp256r1 public key");
+      }
+      if (peerPublicKey == null
+          || !P256.multiply(scalar, peerPublicKey.x, peerPublicKey.y, secret, 0)) {
+        reset();
+        throw new InvalidKeyException("Point is not on the secp256r1 curve");
+      }
+      secretReady = true;
+      return null;
+    }
+
+    @Override
+    protected byte[] engineGenerateSecret() throws IllegalStateException {
+      if (delegate != null) {
+        return delegate.generateSecret();
+      }
+      byte[] out = new byte[P256Field.BYTES];
+      try {
+        engineGenerateSecret(out, 0);
+      } catch (ShortBufferException e) {
+        throw new IllegalStateException(e);
+      }
+      return out;
+    }
+
+    @Override
+    protected int engineGenerateSecret(byte[] sharedSecret, int offset)
+        throws IllegalStateException, ShortBufferException {
+      if (delegate != null) {
+        return delegate.generateSecret(sharedSecret, offset);
+      }
+      if (!secretReady) {
+        throw new IllegalStateException("Key agreement has not been completed");
+      }
+      if (sharedSecret.length - offset < P256Field.BYTES) {
+        throw new ShortBufferException("Need " + P256Field.BYTES + " bytes for the secret");
+      }
+      System.arraycopy(secret, 0, sharedSecret, offset, P256Field.BYTES);
+      reset();
+      return P256Field.BYTES;
+    }
+
+    @Override
+    protected SecretKey engineGenerateSecret(String algorithm)
+        throws IllegalStateException, NoSuchAlgorithmException, InvalidKeyException {
+      if (delegate != null) {
+        return delegate.generateSecret(algorithm);
+      }
+      byte[] sharedSecret = engineGenerateSecret();
+      try {
+        return new SecretKeySpec(sharedSecret, algorithm);
+      } finally {
+        Arrays.fill(sharedSecret, (byte) 0);
+      }
+    }
+
+    /** Forgets the last shared secret, keeping the private key. */
+    private void reset() {
+      Arrays.fill(secret, (byte) 0);
+      secretReady = false;
+    }
+  }
+}
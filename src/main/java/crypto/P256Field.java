@@ -0,0 +1,222 @@
+package crypto;
+
+import java.math.BigInteger;
+
+/**
+ * Constant-time arithmetic modulo the P-256 prime p = 2^256 - 2^224 + 2^192 + 2^96 - 1.
+ *
+ * <p>Field elements are fully reduced and kept in Montgomery form (a * 2^256 mod p) as eight
+ * little-endian 32-bit limbs held in a {@code long[8]}, so that limb products and their carries fit
+ * into a long without overflow. No operation allocates: temporaries live in caller supplied scratch
+ * arrays of {@link #SCRATCH_LENGTH} limbs. No branch or memory access depends on the operands.
+ * Outputs may alias inputs.
+ */
+final class P256Field {
+  static final int LIMBS = 8;
+  static final int SCRATCH_LENGTH = LIMBS + 2;
+  static final int BYTES = 32;
+  static final BigInteger MODULUS =
+      BigInteger.ONE
+          .shiftLeft(256)
+          .subtract(BigInteger.ONE.shiftLeft(224))
+          .add(BigInteger.ONE.shiftLeft(192))
+          .add(BigInteger.ONE.shiftLeft(96))
+          .subtract(BigInteger.ONE);
+
+  private static final long MASK = 0xFFFFFFFFL;
+  private static final long[] P = {
+    0xFFFFFFFFL, 0xFFFFFFFFL, 0xFFFFFFFFL, 0, 0, 0, 1, 0xFFFFFFFFL,
+  };
+  // 2^512 mod p, converts into the Montgomery form
+  private static final long[] R2 = fromBigInteger(BigInteger.ONE.shiftLeft(512).mod(MODULUS));
+  // Plain 1, converts out of the Montgomery form
+  private static final long[] UNIT = {1, 0, 0, 0, 0, 0, 0, 0};
+  // p - 2, the exponent of the inversion
+  private static final BigInteger INVERSION_EXPONENT = MODULUS.subtract(BigInteger.TWO);
+
+  /** The Montgomery form of 1. */
+  static final long[] ONE = fromBigInteger(BigInteger.ONE.shiftLeft(256).mod(MODULUS));
+
+  private P256Field() {}
+
+  /** Converts a non-negative integer below p into its Montgomery form, for constants only. */
+  static long[] toMontgomery(BigInteger value) {
+    long[] out = fromBigInteger(value);
+    mul(out, out, R2, new long[SCRATCH_LENGTH]);
+    return out;
+  }
+
+  private static long[] fromBigInteger(BigInteger value) {
+    long[] out = new long[LIMBS];
+    for (int i = 0; i < LIMBS; i++) {
+      out[i] = value.shiftRight(32 * i).longValue() & MASK;
+    }
+    return out;
+  }
+
+  /**
+   * Multiplies two field elements using word-by-word Montgomery multiplication (CIOS).
+   *
+   * <p>Since p = -1 mod 2^32, the Montgomery factor of every reduction step is the lowest limb
+   * itself.
+   */
+  static void mul(long[] out, long[] a, long[] b, long[] t) {
+    for (int i = 0; i < SCRATCH_LENGTH; i++) {
+      t[i] = 0;
+    }
+    for (int i = 0; i < LIMBS; i++) {
+      // t += a * b[i], every partial sum is at most (2^32 - 1)^2 + 2 * (2^32 - 1) = 2^64 - 1
+      long bi = b[i];
+      long carry = 0;
+      for (int j = 0; j < LIMBS; j++) {
+        long sum = t[j] + a[j] * bi + carry;
+        t[j] = sum & MASK;
+        carry = sum >>> 32;
+      }
+      long sum = t[LIMBS] + carry;
+      t[LIMBS] = sum & MASK;
+      t[LIMBS + 1] = sum >>> 32;
+
+      // t = (t + m * p) / 2^32 with m = t[0]
+      long m = t[0];
+      carry = (t[0] + m * P[0]) >>> 32;
+      for (int j = 1; j < LIMBS; j++) {
+        sum = t[j] + m * P[j] + carry;
+        t[j - 1] = sum & MASK;
+        carry = sum >>> 32;
+      }
+      sum = t[LIMBS] + carry;
+      t[LIMBS - 1] = sum & MASK;
+      t[LIMBS] = t[LIMBS + 1] + (sum >>> 32);
+    }
+    reduceOnce(out, t, t[LIMBS]);
+  }
+
+  /** Adds two field elements. */
+  static void add(long[] out, long[] a, long[] b, long[] t) {
+    long carry = 0;
+    for (int i = 0; i < LIMBS; i++) {
+      long sum = a[i] + b[i] + carry;
+      t[i] = sum & MASK;
+      carry = sum >>> 32;
+    }
+    reduceOnce(out, t, carry);
+  }
+
+  /** Subtracts a field element from another. */
+  static void sub(long[] out, long[] a, long[] b) {
+    long borrow = 0;
+    for (int i = 0; i < LIMBS; i++) {
+      long diff = a[i] - b[i] - borrow;
+      out[i] = diff & MASK;
+      borrow = diff >>> 63;
+    }
+    // Adds p back if the subtraction went negative
+    long mask = -borrow;
+    long carry = 0;
+    for (int i = 0; i < LIMBS; i++) {
+      long sum = out[i] + (P[i] & mask) + carry;
+      out[i] = sum & MASK;
+      carry = sum >>> 32;
+    }
+  }
+
+  /**
+   * Subtracts p from a value below 2p whose lowest limbs are in {@code t} and whose top bit is
+   * {@code high}, unless the value is already below p.
+   */
+  private static void reduceOnce(long[] out, long[] t, long high) {
+    long borrow = 0;
+    for (int i = 0; i < LIMBS; i++) {
+      long diff = t[i] - P[i] - borrow;
+      out[i] = diff & MASK;
+      borrow = diff >>> 63;
+    }
+    // Keeps the difference when the value overflowed 2^256 or the subtraction did not borrow
+    long mask = -(high | (borrow ^ 1));
+    for (int i = 0; i < LIMBS; i++) {
+      out[i] = (out[i] & mask) | (t[i] & ~mask);
+    }
+  }
+
+  /**
+   * Inverts a field element by raising it to p - 2, the inverse of zero is zero.
+   *
+   * @param tmp a temporary of {@link #LIMBS} limbs, distinct from {@code out} and {@code a}.
+   */
+  static void inv(long[] out, long[] a, long[] tmp, long[] t) {
+    copy(tmp, ONE);
+    // The exponent is public, branching on its bits leaks nothing
+    for (int i = INVERSION_EXPONENT.bitLength() - 1; i >= 0; i--) {
+      mul(tmp, tmp, tmp, t);
+      if (INVERSION_EXPONENT.testBit(i)) {
+        mul(tmp, tmp, a, t);
+      }
+    }
+    copy(out, tmp);
+  }
+
+  /** Copies a field element. */
+  static void copy(long[] out, long[] a) {
+    System.arraycopy(a, 0, out, 0, LIMBS);
+  }
+
+  /** Overwrites {@code out} with {@code a} when {@code mask} is all ones, keeps it when zero. */
+  static void select(long[] out, long[] a, int aOffset, long mask) {
+    for (int i = 0; i < LIMBS; i++) {
+      out[i] = (a[aOffset + i] & mask) | (out[i] & ~mask);
+    }
+  }
+
+  /** Checks whether two field elements are equal. */
+  static boolean equal(long[] a, long[] b) {
+    long diff = 0;
+    for (int i = 0; i < LIMBS; i++) {
+      diff |= a[i] ^ b[i];
+    }
+    return diff == 0;
+  }
+
+  /** Checks whether a field element is zero. */
+  static boolean isZero(long[] a) {
+    long acc = 0;
+    for (int i = 0; i < LIMBS; i++) {
+      acc |= a[i];
+    }
+    return acc == 0;
+  }
+
+  /**
+   * Decodes a 32-byte big-endian integer into a field element.
+   *
+   * @return {@code false} if the integer is not below p.
+   */
+  static boolean decode(long[] out, byte[] buf, int offset, long[] t) {
+    for (int i = 0; i < LIMBS; i++) {
+      int pos = offset + BYTES - 4 * (i + 1);
+      out[i] =
+          ((buf[pos] & 0xFFL) << 24)
+              | ((buf[pos + 1] & 0xFFL) << 16)
+              | ((buf[pos + 2] & 0xFFL) << 8)
+              | (buf[pos + 3] & 0xFFL);
+    }
+    long borrow = 0;
+    for (int i = 0; i < LIMBS; i++) {
+      borrow = (out[i] - P[i] - borrow) >>> 63;
+    }
+    mul(out, out, R2, t);
+    return borrow == 1;
+  }
+
+  /** Encodes a field element into a 32-byte big-endian integer. */
+  static void encode(byte[] buf, int offset, long[] a, long[] tmp, long[] t) {
+    mul(tmp, a, UNIT, t);
+    for (int i = 0; i < LIMBS; i++) {
+      int pos = offset + BYTES - 4 * (i + 1);
+      buf[pos] = (byte) (tmp[i] >>> 24);
+      buf[pos + 1] = (byte) (tmp[i] >>> 16);
+      buf[pos + 2] = (byte) (tmp[i] >>> 8);
+      buf[pos + 3] = (byte) tmp[i];
+    }
+  }
+}
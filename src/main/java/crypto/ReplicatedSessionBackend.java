@@ -0,0 +1,350 @@
+package crypto;
+
+import com.google.protobuf.ByteString;
+import crypto.CryptoOuterClass.Session;
+import crypto.CryptoOuterClass.SessionBatch;
+import crypto.CryptoOuterClass.SessionBatchAck;
+import crypto.SessionReplicationGrpc.SessionReplicationStub;
+import io.grpc.ChannelCredentials;
+import io.grpc.Grpc;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerCredentials;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.TlsChannelCredentials;
+import io.grpc.TlsServerCredentials;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares sessions between server replicas.
+ *
+ * <p>Every replica keeps a near cache of all sessions, so lookups never leave the local server.
+ * Stored sessions are queued for every peer and pushed in batches by a background thread per peer,
+ * which keeps several batches in flight. While a peer's batches are in flight, newly stored
+ * sessions accumulate into its next, larger batch. An unresponsive peer thus only holds up its own
+ * queue, whose sessions are dropped once it is full.
+ *
+ * <p>Replication is asynchronous: a session resumed on another replica right after it was stored
+ * may not have arrived there yet, in which case that replica performs a full handshake.
+ *
+ * <p>Since sessions carry shared secrets, replicas exchange them on a listener of their own, apart
+ * from the port serving clients, over mutual TLS. Every batch also carries a token shared by all
+ * replicas. A replicated session never replaces a stored session with the same id.
+ */
+public class ReplicatedSessionBackend implements SessionBackend {
+  private static final Logger logger = Logger.getLogger(ReplicatedSessionBackend.class.getName());
+
+  private static final int DEFAULT_MAX_BATCH_SIZE = 256;
+  private static final int DEFAULT_MAX_IN_FLIGHT_BATCHES = 4;
+  private static final int MAX_PENDING_SESSIONS = 65536;
+  private static final long REPLICATION_DEADLINE_SECONDS = 5;
+  private static final int MAX_SESSIONS = 1 << 22;
+  private static final int MAX_SESSION_ID_LENGTH = 64;
+  private static final int MAX_SECRET_LENGTH = 1024;
+  private static final int MIN_TOKEN_LENGTH = 16;
+  private static final Metadata.Key<byte[]> TOKEN_KEY =
+      Metadata.Key.of("replication-token-bin", Metadata.BINARY_BYTE_MARSHALLER);
+
+  private final InMemorySessionBackend nearCache = new InMemorySessionBackend(MAX_SESSIONS);
+  private final List<Peer> peers = new CopyOnWriteArrayList<>();
+  private final ChannelCredentials channelCredentials;
+  private final byte[] token;
+  private final int maxBatchSize;
+  private final int maxInFlightBatches;
+  private final Server server;
+  private volatile boolean closed;
+
+  private static class Peer {
+    private final String target;
+    private final ManagedChannel channel;
+    private final SessionReplicationStub stub;
+    private final Semaphore inFlight;
+    private final BlockingQueue<Session> pending = new LinkedBlockingQueue<>(MAX_PENDING_SESSIONS);
+    private Thread flusher;
+
+    Peer(
+        String target,
+        String authority,
+        ChannelCredentials channelCredentials,
+        byte[] token,
+        int maxInFlightBatches) {
+      this.target = target;
+      ManagedChannelBuilder<?> channelBuilder = Grpc.newChannelBuilder(target, channelCredentials);
+      if (authority != null) {
+        channelBuilder.overrideAuthority(authority);
+      }
+      this.channel = channelBuilder.build();
+      Metadata headers = new Metadata();
+      headers.put(TOKEN_KEY, token);
+      this.stub =
+          SessionReplicationGrpc.newStub(channel)
+              .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+      this.inFlight = new Semaphore(maxInFlightBatches);
+    }
+  }
+
+  public ReplicatedSessionBackend(
+      int replicationPort,
+      ServerCredentials serverCredentials,
+      ChannelCredentials channelCredentials,
+      byte[] token)
+      throws IOException {
+    this(
+        replicationPort,
+        serverCredentials,
+        channelCredentials,
+        token,
+        DEFAULT_MAX_BATCH_SIZE,
+        DEFAULT_MAX_IN_FLIGHT_BATCHES);
+  }
+
+  /**
+   * Creates a replicated session backend without peers and starts listening for the sessions the
+   * peers replicate.
+   *
+   * @param replicationPort the port receiving the peers' sessions, other than the client port.
+   * @param serverCredentials the TLS credentials of the listener, requiring client certificates.
+   * @param channelCredentials the TLS credentials, with a client certificate, to reach the peers.
+   * @param token the secret shared by all replicas, of at least 16 bytes.
+   * @param maxBatchSize the maximum number of sessions sent to a peer at once.
+   * @param maxInFlightBatches the maximum number of unacknowledged batches per peer.
+   */
+  public ReplicatedSessionBackend(
+      int replicationPort,
+      ServerCredentials serverCredentials,
+      ChannelCredentials channelCredentials,
+      byte[] token,
+      int maxBatchSize,
+      int maxInFlightBatches)
+      throws IOException {
+    if (!(serverCredentials instanceof TlsServerCredentials tlsServerCredentials)
+        || tlsServerCredentials.getClientAuth() != TlsServerCredentials.ClientAuth.REQUIRE
+        || !(channelCredentials instanceof TlsChannelCredentials)) {
+      throw new IllegalArgumentException("Replication requires mutual TLS");
+    }
+    if (token.length < MIN_TOKEN_LENGTH) {
+      throw new IllegalArgumentException(
+          "Replication token must be at least " + MIN_TOKEN_LENGTH + " bytes long");
+    }
+    if (maxBatchSize <= 0 || maxInFlightBatches <= 0) {
+      throw new IllegalArgumentException("Batch size and in-flight batches must be positive");
+    }
+    this.channelCredentials = channelCredentials;
+    this.token = token.clone();
+    this.maxBatchSize = maxBatchSize;
+    this.maxInFlightBatches = maxInFlightBatches;
+    server =
+        Grpc.newServerBuilderForPort(replicationPort, serverCredentials)
+            .addService(
+                ServerInterceptors.intercept(
+                    new SessionReplicationService(), new TokenInterceptor(this.token)))
+            .build()
+            .start();
+  }
+
+  /** Returns the port receiving the peers' sessions, useful when it was started on port 0. */
+  public int getReplicationPort() {
+    return server.getPort();
+  }
+
+  /**
+   * Adds a replica to push the stored sessions to.
+   *
+   * @param target the replica's replication address, e.g. {@code localhost:50052}.
+   */
+  public void addPeer(String target) {
+    addPeer(target, null);
+  }
+
+  /**
+   * Adds a replica to push the stored sessions to.
+   *
+   * @param target the replica's replication address, e.g. {@code 10.0.0.2:50052}.
+   * @param authority the name the replica's certificate is verified against, {@code null} for the
+   *     target's host.
+   */
+  public void addPeer(String target, String authority) {
+    Peer peer = new Peer(target, authority, channelCredentials, token, maxInFlightBatches);
+    peer.flusher = new Thread(() -> flushLoop(peer), "session-replication-" + target);
+    peer.flusher.setDaemon(true);
+    peer.flusher.start();
+    peers.add(peer);
+  }
+
+  @Override
+  public void put(Session session) {
+    nearCache.put(session);
+    for (Peer peer : peers) {
+      if (!peer.pending.offer(session)) {
+        logger.log(
+            Level.WARNING,
+            "Replication queue of " + peer.target + " is full, session is not replicated");
+      }
+    }
+  }
+
+  @Override
+  public Session get(ByteString sessionId) {
+    return nearCache.get(sessionId);
+  }
+
+  @Override
+  public void forEach(Consumer<Session> action) {
+    nearCache.forEach(action);
+  }
+
+  /** Replicates the queued sessions, then shuts down the listener and the peer connections. */
+  @Override
+  public void close() {
+    closed = true;
+    server.shutdown();
+    try {
+      // The peers are flushed in parallel, within a single deadline
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(REPLICATION_DEADLINE_SECONDS);
+      for (Peer peer : peers) {
+        TimeUnit.NANOSECONDS.timedJoin(peer.flusher, Math.max(deadline - System.nanoTime(), 1));
+      }
+      for (Peer peer : peers) {
+        peer.channel.shutdown();
+      }
+      for (Peer peer : peers) {
+        peer.channel.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      server.shutdownNow();
+      for (Peer peer : peers) {
+        peer.channel.shutdownNow();
+      }
+      nearCache.close();
+      Arrays.fill(token, (byte) 0);
+    }
+  }
+
+  private void flushLoop(Peer peer) {
+    List<Session> batch = new ArrayList<>(maxBatchSize);
+    while (!closed || !peer.pending.isEmpty()) {
+      try {
+        Session first = peer.pending.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        peer.pending.drainTo(batch, maxBatchSize - 1);
+        send(peer, SessionBatch.newBuilder().addAllSessions(batch).build());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void send(Peer peer, SessionBatch batch) throws InterruptedException {
+    if (!peer.inFlight.tryAcquire(REPLICATION_DEADLINE_SECONDS, TimeUnit.SECONDS)) {
+      logger.log(
+          Level.WARNING,
+          "Dropping " + batch.getSessionsCount() + " sessions for unresponsive " + peer.target);
+      return;
+    }
+    peer.stub
+        .withDeadlineAfter(REPLICATION_DEADLINE_SECONDS, TimeUnit.SECONDS)
+        .replicate(
+            batch,
+            new StreamObserver<SessionBatchAck>() {
+              @Override
+              public void onNext(SessionBatchAck ack) {}
+
+              @Override
+              public void onError(Throwable t) {
+                peer.inFlight.release();
+                logger.log(Level.WARNING, "Failed to replicate sessions to " + peer.target, t);
+              }
+
+              @Override
+              public void onCompleted() {
+                peer.inFlight.release();
+              }
+            });
+  }
+
+  private class SessionReplicationService
+      extends SessionReplicationGrpc.SessionReplicationImplBase {
+    @Override
+    public void replicate(SessionBatch batch, StreamObserver<SessionBatchAck> responseObserver) {
+      if (batch.getSessionsCount() > maxBatchSize) {
+        responseObserver.onError(
+            Status.INVALID_ARGUMENT
+                .withDescription("Batch exceeds " + maxBatchSize + " sessions")
+                .asRuntimeException());
+        return;
+      }
+      int rejected = 0;
+      for (Session session : batch.getSessionsList()) {
+        // A replicated session must never re-key a session this replica already knows
+        if (!isValid(session) || !nearCache.putIfAbsent(session)) {
+          rejected++;
+        }
+      }
+      if (rejected > 0) {
+        logger.log(Level.WARNING, "Rejected " + rejected + " replicated sessions");
+      }
+      responseObserver.onNext(SessionBatchAck.getDefaultInstance());
+      responseObserver.onCompleted();
+    }
+
+    private boolean isValid(Session session) {
+      return !session.getSessionId().isEmpty()
+          && session.getSessionId().size() <= MAX_SESSION_ID_LENGTH
+          && !session.getSecret().isEmpty()
+          && session.getSecret().size() <= MAX_SECRET_LENGTH;
+    }
+  }
+
+  /** Rejects the calls which do not carry the replicas' shared token. */
+  private static class TokenInterceptor implements ServerInterceptor {
+    private final byte[] token;
+
+    TokenInterceptor(byte[] token) {
+      this.token = token;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+        ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+      byte[] presented = headers.get(TOKEN_KEY);
+      // Compares in constant time
+      if (presented == null || !MessageDigest.isEqual(presented, token)) {
+        logger.log(
+            Level.WARNING,
+            "Rejecting replication from "
+                + call.getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR));
+        call.close(Status.UNAUTHENTICATED.withDescription("Invalid token"), new Metadata());
+        return new ServerCall.Listener<ReqT>() {};
+      }
+      return next.startCall(call, headers);
+    }
+  }
+}
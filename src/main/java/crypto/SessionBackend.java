@@ -0,0 +1,34 @@
+package crypto;
+
+import com.google.protobuf.ByteString;
+import crypto.CryptoOuterClass.Session;
+import java.util.function.Consumer;
+
+/** Stores the sessions a server can resume. */
+public interface SessionBackend extends AutoCloseable {
+  /**
+   * Stores a session, replacing any session with the same id.
+   *
+   * @param session the session to store.
+   */
+  void put(Session session);
+
+  /**
+   * Looks up a session which has not expired yet.
+   *
+   * @param sessionId the session's id.
+   * @return the session, or {@code null} if there is none.
+   */
+  Session get(ByteString sessionId);
+
+  /**
+   * Visits every session which has not expired yet.
+   *
+   * @param action the action applied to each session.
+   */
+  void forEach(Consumer<Session> action);
+
+  /** Releases the backend's resources. */
+  @Override
+  void close();
+}
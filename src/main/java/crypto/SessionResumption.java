@@ -0,0 +1,121 @@
+package crypto;
+
+import com.google.protobuf.ByteString;
+import crypto.CryptoOuterClass.Session;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Derives the keys of resumed sessions.
+ *
+ * <p>The stored secret of a session is never used as a connection key on its own. A resuming client
+ * sends a fresh nonce along with a binder, an HMAC over the session id and its nonce under a key
+ * derived from the session's secret, which proves it holds the secret. The server answers with a
+ * fresh nonce of its own, and both sides derive the connection key with HKDF-SHA256 (RFC 5869) over
+ * the session's secret and both nonces. Every resumption of a session thus gets a distinct key.
+ */
+final class SessionResumption {
+  private static final Logger logger = Logger.getLogger(SessionResumption.class.getName());
+
+  static final int NONCE_LENGTH = 32;
+  static final int KEY_LENGTH = 32;
+
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  private static final byte[] BINDER_LABEL =
+      "crypto-java resumption binder".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] KEY_LABEL =
+      "crypto-java resumption key".getBytes(StandardCharsets.US_ASCII);
+  private static final SecureRandom random = new SecureRandom();
+
+  private SessionResumption() {}
+
+  /** Generates a fresh nonce. */
+  static ByteString newNonce() {
+    byte[] nonce = new byte[NONCE_LENGTH];
+    random.nextBytes(nonce);
+    return Util.wrapOwned(nonce);
+  }
+
+  /**
+   * Computes the binder proving the possession of a session's secret.
+   *
+   * @return the binder, or {@code null} on failure.
+   */
+  static ByteString binder(Session session, ByteString clientNonce) {
+    byte[] binderKey = null;
+    try {
+      binderKey = hkdf(session, session.getSessionId(), BINDER_LABEL);
+      Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(new SecretKeySpec(binderKey, MAC_ALGORITHM));
+      mac.update(session.getSessionId().asReadOnlyByteBuffer());
+      mac.update(clientNonce.asReadOnlyByteBuffer());
+      return Util.wrapOwned(mac.doFinal());
+    } catch (GeneralSecurityException e) {
+      handleErrors(e);
+    } finally {
+      if (binderKey != null) {
+        Arrays.fill(binderKey, (byte) 0);
+      }
+    }
+    return null;
+  }
+
+  /** Checks in constant time whether a client's binder matches a session. */
+  static boolean verifyBinder(Session session, ByteString clientNonce, ByteString binder) {
+    if (clientNonce.size() != NONCE_LENGTH) {
+      return false;
+    }
+    ByteString expected = binder(session, clientNonce);
+    return expected != null && MessageDigest.isEqual(expected.toByteArray(), binder.toByteArray());
+  }
+
+  /**
+   * Derives the key of one resumption of a session.
+   *
+   * @return the key, or {@code null} on failure.
+   */
+  static byte[] deriveKey(Session session, ByteString clientNonce, ByteString serverNonce) {
+    if (clientNonce.size() != NONCE_LENGTH || serverNonce.size() != NONCE_LENGTH) {
+      return null;
+    }
+    try {
+      return hkdf(session, clientNonce.concat(serverNonce), KEY_LABEL);
+    } catch (GeneralSecurityException e) {
+      handleErrors(e);
+    }
+    return null;
+  }
+
+  /** HKDF-SHA256 over the session's secret, with the label and session id as info. */
+  private static byte[] hkdf(Session session, ByteString salt, byte[] label)
+      throws GeneralSecurityException {
+    Mac mac = Mac.getInstance(MAC_ALGORITHM);
+    // Extract
+    mac.init(new SecretKeySpec(salt.toByteArray(), MAC_ALGORITHM));
+    byte[] ikm = session.getSecret().toByteArray();
+    byte[] prk = mac.doFinal(ikm);
+    Arrays.fill(ikm, (byte) 0);
+    // Expand, a single block covers the key length
+    try {
+      mac.init(new SecretKeySpec(prk, MAC_ALGORITHM));
+      mac.update(label);
+      mac.update(session.getSessionId().asReadOnlyByteBuffer());
+      mac.update((byte) session.getCipherSuiteValue());
+      mac.update((byte) 1);
+      return Arrays.copyOf(mac.doFinal(), KEY_LENGTH);
+    } finally {
+      Arrays.fill(prk, (byte) 0);
+    }
+  }
+
+  private static void handleErrors(Exception e) {
+    logger.log(Level.SEVERE, e.getMessage(), e);
+  }
+}
@@ -0,0 +1,724 @@
+package crypto;
+
+import com.google.protobuf.ByteString;
+import crypto.CryptoOuterClass.Session;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checkpoints the sessions of another backend into an encrypted, memory-mapped snapshot file, so
+ * that a restarted server resumes the sessions of its previous run.
+ *
+ * <p>The snapshot is a header, a section table, then one section of records per secret length, so
+ * that a record is only as long as the secret it holds. Records are sorted by session id within
+ * their section:
+ *
+ * <pre>
+ * header:  magic (4) | version (4) | section count (4) | sealed record count (8)
+ *          | data key nonce (12) | data key wrapped under the key-encryption key (32 + 16)
+ * section: secret length (4) | record count (4), ascending secret lengths
+ * record:  session id (16) | expires at millis (8) | nonce (12)
+ *          | AES-GCM(cipher suite (1) | secret) + tag (16)
+ * </pre>
+ *
+ * <p>Records are encrypted under a data key with a random nonce, and their session id and expiry as
+ * associated data. Their ciphertext thus does not depend on their position, and a checkpoint copies
+ * the records of the previous snapshot as they are, only encrypting the sessions added since. The
+ * data key is kept until it sealed 2^31 records, then every record is encrypted again under a
+ * fresh one. On startup the snapshot is only mapped and its data key unwrapped. Sessions the
+ * wrapped backend does not know are looked up by binary search in the mapped sections, decrypted
+ * and moved into the wrapped backend on demand.
+ *
+ * <p>Sessions are not modified once created, so a live session whose id and expiry match a record
+ * is taken to be that record. Sessions with another session id length or with secrets longer than
+ * 1024 bytes are not checkpointed.
+ */
+public class SnapshotSessionBackend implements SessionBackend {
+  private static final Logger logger = Logger.getLogger(SnapshotSessionBackend.class.getName());
+
+  private static final int MAGIC = 0x43534E50; // "CSNP"
+  private static final int VERSION = 2;
+  private static final String CIPHER = "AES/GCM/NoPadding";
+  private static final int KEY_LENGTH = 32;
+  private static final int NONCE_LENGTH = 12;
+  private static final int TAG_LENGTH = 16;
+  private static final int HEADER_AAD_LENGTH = 3 * Integer.BYTES + Long.BYTES;
+  private static final int HEADER_LENGTH =
+      HEADER_AAD_LENGTH + NONCE_LENGTH + KEY_LENGTH + TAG_LENGTH;
+  private static final int SECTION_ENTRY_LENGTH = 2 * Integer.BYTES;
+  private static final int SESSION_ID_LENGTH = 16;
+  private static final int MAX_SECRET_LENGTH = 1024;
+  private static final int RECORD_AAD_LENGTH = SESSION_ID_LENGTH + Long.BYTES;
+  private static final int RECORD_OVERHEAD = RECORD_AAD_LENGTH + NONCE_LENGTH + 1 + TAG_LENGTH;
+  // Random nonces stay unlikely to collide below 2^32 messages per key (NIST SP 800-38D)
+  private static final long MAX_SEALED_RECORDS = 1L << 31;
+
+  private static final SecureRandom random = new SecureRandom();
+  // A Cipher is not thread-safe, one per thread keeps snapshot lookups from contending
+  private static final ThreadLocal<Cipher> ciphers =
+      ThreadLocal.withInitial(
+          () -> {
+            try {
+              return Cipher.getInstance(CIPHER);
+            } catch (GeneralSecurityException e) {
+              throw new IllegalStateException(e);
+            }
+          });
+
+  private final SessionBackend delegate;
+  private final Path snapshotPath;
+  private final SecretKey keyEncryptionKey;
+  private final ScheduledExecutorService executor;
+  private volatile Snapshot snapshot;
+
+  /**
+   * Wraps a session backend, loading the snapshot left by a previous run if there is one.
+   *
+   * @param delegate the backend holding the live sessions, closed along with this backend.
+   * @param snapshotPath the snapshot file.
+   * @param keyEncryptionKey the AES key protecting the snapshot's data keys.
+   * @param checkpointSeconds the number of seconds between two checkpoints.
+   */
+  public SnapshotSessionBackend(
+      SessionBackend delegate,
+      Path snapshotPath,
+      SecretKey keyEncryptionKey,
+      long checkpointSeconds) {
+    if (checkpointSeconds <= 0) {
+      throw new IllegalArgumentException("Checkpoint period must be positive");
+    }
+    this.delegate = delegate;
+    this.snapshotPath = snapshotPath;
+    this.keyEncryptionKey = keyEncryptionKey;
+    this.snapshot = Snapshot.open(snapshotPath, keyEncryptionKey);
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "session-snapshot");
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.scheduleWithFixedDelay(
+        this::checkpoint, checkpointSeconds, checkpointSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Reads the key-encryption key from a file, generating it first if the file does not exist.
+   *
+   * <p>A generated key is written to a temporary file readable by its owner only, which is then
+   * linked into place, so that concurrent starts agree on one key and a crash never leaves a
+   * partial key behind. The key file should not live next to the snapshot, e.g. on a separately
+   * protected volume.
+   *
+   * @param keyPath the file holding the raw 256-bit key.
+   */
+  public static SecretKey loadKeyEncryptionKey(Path keyPath) throws IOException {
+    if (!Files.exists(keyPath)) {
+      generateKeyEncryptionKey(keyPath);
+    }
+    byte[] key = Files.readAllBytes(keyPath);
+    if (key.length != KEY_LENGTH) {
+      throw new IOException("Key-encryption key must be " + KEY_LENGTH + " bytes long");
+    }
+    try {
+      return new SecretKeySpec(key, "AES");
+    } finally {
+      Arrays.fill(key, (byte) 0);
+    }
+  }
+
+  private static void generateKeyEncryptionKey(Path keyPath) throws IOException {
+    Path dir = keyPath.toAbsolutePath().getParent();
+    String prefix = keyPath.getFileName() + ".";
+    Path tmpPath;
+    try {
+      tmpPath =
+          Files.createTempFile(
+              dir,
+              prefix,
+              ".tmp",
+              PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException e) {
+      tmpPath = Files.createTempFile(dir, prefix, ".tmp");
+    }
+    byte[] key = new byte[KEY_LENGTH];
+    random.nextBytes(key);
+    try {
+      try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.WRITE)) {
+        ByteBuffer buffer = ByteBuffer.wrap(key);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(true);
+      }
+      try {
+        // Unlike a rename, a link never replaces a key generated concurrently
+        Files.createLink(keyPath, tmpPath);
+      } catch (FileAlreadyExistsException e) {
+        // Generated concurrently, use that one
+      } catch (UnsupportedOperationException e) {
+        Files.move(tmpPath, keyPath, StandardCopyOption.ATOMIC_MOVE);
+      }
+    } finally {
+      Arrays.fill(key, (byte) 0);
+      Files.deleteIfExists(tmpPath);
+    }
+  }
+
+  @Override
+  public void put(Session session) {
+    delegate.put(session);
+  }
+
+  @Override
+  public Session get(ByteString sessionId) {
+    Session session = delegate.get(sessionId);
+    if (session != null) {
+      return session;
+    }
+    Snapshot current = snapshot;
+    if (current == null) {
+      return null;
+    }
+    session = current.find(sessionId);
+    if (session != null) {
+      delegate.put(session);
+    }
+    return session;
+  }
+
+  @Override
+  public void forEach(Consumer<Session> action) {
+    delegate.forEach(action);
+  }
+
+  /** Writes a last checkpoint, then closes the wrapped backend. */
+  @Override
+  public void close() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    checkpoint();
+    delegate.close();
+  }
+
+  /**
+   * Writes the live sessions and the not yet resumed ones of the last snapshot to a new one.
+   *
+   * <p>Only the live sessions missing from the last snapshot are encrypted, its other records are
+   * copied without being decrypted. Nothing is written if no session was added or expired.
+   */
+  synchronized void checkpoint() {
+    long now = System.currentTimeMillis();
+    Snapshot previous = snapshot;
+    Map<Integer, List<Session>> fresh = new TreeMap<>();
+    Set<ByteString> sessionIds = new HashSet<>();
+    Set<ByteString> replaced = new HashSet<>();
+    delegate.forEach(
+        session -> {
+          if (isCheckpointable(session, now)
+              && sessionIds.add(session.getSessionId())
+              && (previous == null || !previous.holds(session, replaced))) {
+            fresh.computeIfAbsent(session.getSecret().size(), length -> new ArrayList<>())
+                .add(session);
+          }
+        });
+
+    // Records of the last snapshot which are carried over, by secret length
+    Map<Integer, int[]> kept = new TreeMap<>();
+    long carried = 0;
+    if (previous != null) {
+      for (Section section : previous.sections) {
+        int[] indexes = section.keptIndexes(now, replaced);
+        kept.put(section.secretLength, indexes);
+        carried += indexes.length;
+      }
+    }
+    long sealing = 0;
+    for (List<Session> sessions : fresh.values()) {
+      sessions.sort((a, b) -> compareIds(a.getSessionId(), b.getSessionId()));
+      sealing += sessions.size();
+    }
+    if (sealing == 0 && (previous == null || carried == previous.recordCount())) {
+      return;
+    }
+
+    Path tmpPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+    try {
+      Snapshot carriedFrom = previous;
+      byte[] dataKey;
+      long sealedCount;
+      if (previous != null && previous.sealedCount + sealing <= MAX_SEALED_RECORDS) {
+        dataKey = previous.dataKey.getEncoded();
+        sealedCount = previous.sealedCount + sealing;
+      } else {
+        // The data key is new or worn out, every record is encrypted under a fresh one
+        dataKey = new byte[KEY_LENGTH];
+        random.nextBytes(dataKey);
+        if (previous != null) {
+          reseal(previous, kept, fresh);
+          kept.clear();
+          carriedFrom = null;
+          carried = 0;
+          sealing = 0;
+          for (List<Session> sessions : fresh.values()) {
+            sealing += sessions.size();
+          }
+        }
+        sealedCount = sealing;
+      }
+      try {
+        Snapshot.write(tmpPath, carriedFrom, kept, fresh, dataKey, sealedCount, keyEncryptionKey);
+      } finally {
+        Arrays.fill(dataKey, (byte) 0);
+      }
+      Files.move(
+          tmpPath,
+          snapshotPath,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      snapshot = Snapshot.open(snapshotPath, keyEncryptionKey);
+      logger.log(
+          Level.INFO,
+          "Checkpointed " + (carried + sealing) + " sessions, " + sealing + " newly encrypted");
+    } catch (IOException | GeneralSecurityException e) {
+      logger.log(Level.WARNING, "Failed to checkpoint sessions", e);
+    }
+  }
+
+  /** Moves the kept records of a snapshot, decrypted, among the sessions to encrypt. */
+  private static void reseal(
+      Snapshot previous, Map<Integer, int[]> kept, Map<Integer, List<Session>> fresh) {
+    for (Section section : previous.sections) {
+      List<Session> sessions =
+          fresh.computeIfAbsent(section.secretLength, length -> new ArrayList<>());
+      for (int index : kept.get(section.secretLength)) {
+        Session session = section.decrypt(index, previous.dataKey);
+        if (session != null) {
+          sessions.add(session);
+        }
+      }
+      sessions.sort((a, b) -> compareIds(a.getSessionId(), b.getSessionId()));
+    }
+  }
+
+  private static boolean isCheckpointable(Session session, long now) {
+    return session.getSessionId().size() == SESSION_ID_LENGTH
+        && session.getSecret().size() > 0
+        && session.getSecret().size() <= MAX_SECRET_LENGTH
+        && session.getExpiresAtMillis() > now;
+  }
+
+  private static int compareIds(ByteString a, ByteString b) {
+    for (int i = 0; i < SESSION_ID_LENGTH; i++) {
+      int diff = (a.byteAt(i) & 0xFF) - (b.byteAt(i) & 0xFF);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return 0;
+  }
+
+  private static int recordLength(int secretLength) {
+    return RECORD_OVERHEAD + secretLength;
+  }
+
+  /** Records of one secret length, mapped from a snapshot file. */
+  private static class Section {
+    private final int secretLength;
+    private final int recordLength;
+    private final int recordCount;
+    private final MappedByteBuffer buffer;
+
+    private Section(int secretLength, int recordCount, MappedByteBuffer buffer) {
+      this.secretLength = secretLength;
+      this.recordLength = recordLength(secretLength);
+      this.recordCount = recordCount;
+      this.buffer = buffer;
+    }
+
+    /** Looks up a record by binary search, returns its index or {@code -1}. */
+    int indexOf(ByteString sessionId) {
+      int low = 0;
+      int high = recordCount - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int cmp = compareId(mid, sessionId);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
+    }
+
+    /** Returns the indexes of the records neither expired nor replaced by a live session. */
+    int[] keptIndexes(long now, Set<ByteString> replaced) {
+      int[] indexes = new int[recordCount];
+      int count = 0;
+      for (int i = 0; i < recordCount; i++) {
+        if (expiresAt(i) > now && (replaced.isEmpty() || !replaced.contains(recordId(i)))) {
+          indexes[count++] = i;
+        }
+      }
+      return Arrays.copyOf(indexes, count);
+    }
+
+    private int compareId(int index, ByteString sessionId) {
+      int offset = index * recordLength;
+      for (int i = 0; i < SESSION_ID_LENGTH; i++) {
+        int diff = (buffer.get(offset + i) & 0xFF) - (sessionId.byteAt(i) & 0xFF);
+        if (diff != 0) {
+          return diff;
+        }
+      }
+      return 0;
+    }
+
+    private ByteString recordId(int index) {
+      byte[] id = new byte[SESSION_ID_LENGTH];
+      buffer.get(index * recordLength, id);
+      return Util.wrapOwned(id);
+    }
+
+    private long expiresAt(int index) {
+      return buffer.getLong(index * recordLength + SESSION_ID_LENGTH);
+    }
+
+    /** Decrypts a record, safe to call concurrently since mapped reads are absolute. */
+    Session decrypt(int index, SecretKey dataKey) {
+      long expiresAtMillis = expiresAt(index);
+      if (expiresAtMillis <= System.currentTimeMillis()) {
+        return null;
+      }
+      byte[] record = new byte[recordLength];
+      buffer.get(index * recordLength, record);
+      byte[] plaintext = null;
+      try {
+        Cipher cipher = ciphers.get();
+        cipher.init(
+            Cipher.DECRYPT_MODE,
+            dataKey,
+            new GCMParameterSpec(8 * TAG_LENGTH, record, RECORD_AAD_LENGTH, NONCE_LENGTH));
+        cipher.updateAAD(record, 0, RECORD_AAD_LENGTH);
+        int ciphertextOffset = RECORD_AAD_LENGTH + NONCE_LENGTH;
+        plaintext = cipher.doFinal(record, ciphertextOffset, recordLength - ciphertextOffset);
+        return Session.newBuilder()
+            .setSessionId(ByteString.copyFrom(record, 0, SESSION_ID_LENGTH))
+            .setCipherSuiteValue(plaintext[0])
+            .setSecret(ByteString.copyFrom(plaintext, 1, secretLength))
+            .setExpiresAtMillis(expiresAtMillis)
+            .build();
+      } catch (GeneralSecurityException e) {
+        logger.log(Level.WARNING, "Skipping corrupted session record " + index, e);
+      } finally {
+        if (plaintext != null) {
+          Arrays.fill(plaintext, (byte) 0);
+        }
+      }
+      return null;
+    }
+  }
+
+  /** A mapped snapshot file whose data key has been unwrapped. */
+  private static class Snapshot {
+    private final Section[] sections;
+    private final long sealedCount;
+    private final SecretKey dataKey;
+
+    private Snapshot(Section[] sections, long sealedCount, SecretKey dataKey) {
+      this.sections = sections;
+      this.sealedCount = sealedCount;
+      this.dataKey = dataKey;
+    }
+
+    /** Maps a snapshot file, returns {@code null} if there is none or it cannot be used. */
+    static Snapshot open(Path path, SecretKey keyEncryptionKey) {
+      if (!Files.exists(path)) {
+        return null;
+      }
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        long size = channel.size();
+        if (size < HEADER_LENGTH) {
+          throw new IOException("Invalid snapshot size " + size);
+        }
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+        int sectionCount = header.getInt(8);
+        long sealedCount = header.getLong(12);
+        if (header.getInt(0) != MAGIC
+            || header.getInt(4) != VERSION
+            || sectionCount < 0
+            || sectionCount > MAX_SECRET_LENGTH
+            || sealedCount < 0
+            || size < HEADER_LENGTH + (long) sectionCount * SECTION_ENTRY_LENGTH) {
+          throw new IOException("Invalid snapshot header");
+        }
+        int tableLength = sectionCount * SECTION_ENTRY_LENGTH;
+        MappedByteBuffer table =
+            channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH, tableLength);
+        int[] secretLengths = new int[sectionCount];
+        int[] recordCounts = new int[sectionCount];
+        long expectedSize = HEADER_LENGTH + (long) tableLength;
+        for (int i = 0; i < sectionCount; i++) {
+          secretLengths[i] = table.getInt(i * SECTION_ENTRY_LENGTH);
+          recordCounts[i] = table.getInt(i * SECTION_ENTRY_LENGTH + Integer.BYTES);
+          if (secretLengths[i] <= (i == 0 ? 0 : secretLengths[i - 1])
+              || secretLengths[i] > MAX_SECRET_LENGTH
+              || recordCounts[i] <= 0
+              || recordCounts[i] > Integer.MAX_VALUE / recordLength(secretLengths[i])) {
+            throw new IOException("Invalid snapshot section " + i);
+          }
+          expectedSize += (long) recordCounts[i] * recordLength(secretLengths[i]);
+        }
+        if (size != expectedSize) {
+          throw new IOException("Invalid snapshot size " + size);
+        }
+
+        // The header and section table authenticate the wrapped data key
+        byte[] headerBuf = new byte[HEADER_LENGTH];
+        header.get(0, headerBuf);
+        byte[] tableBuf = new byte[tableLength];
+        table.get(0, tableBuf);
+        Cipher cipher = ciphers.get();
+        cipher.init(
+            Cipher.DECRYPT_MODE,
+            keyEncryptionKey,
+            new GCMParameterSpec(8 * TAG_LENGTH, headerBuf, HEADER_AAD_LENGTH, NONCE_LENGTH));
+        cipher.updateAAD(headerBuf, 0, HEADER_AAD_LENGTH);
+        cipher.updateAAD(tableBuf);
+        byte[] dataKeyBuf =
+            cipher.doFinal(headerBuf, HEADER_AAD_LENGTH + NONCE_LENGTH, KEY_LENGTH + TAG_LENGTH);
+        SecretKey dataKey = new SecretKeySpec(dataKeyBuf, "AES");
+        Arrays.fill(dataKeyBuf, (byte) 0);
+
+        Section[] sections = new Section[sectionCount];
+        long offset = HEADER_LENGTH + (long) tableLength;
+        for (int i = 0; i < sectionCount; i++) {
+          int length = recordCounts[i] * recordLength(secretLengths[i]);
+          sections[i] =
+              new Section(
+                  secretLengths[i],
+                  recordCounts[i],
+                  channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+          offset += length;
+        }
+        Snapshot snapshot = new Snapshot(sections, sealedCount, dataKey);
+        logger.log(Level.INFO, "Mapped snapshot of " + snapshot.recordCount() + " sessions");
+        return snapshot;
+      } catch (IOException | GeneralSecurityException e) {
+        logger.log(Level.WARNING, "Ignoring unusable snapshot " + path, e);
+      }
+      return null;
+    }
+
+    /**
+     * Writes a new snapshot file, merging the kept records of a previous snapshot encrypted under
+     * the same data key with new sessions, both sorted by id.
+     *
+     * @param previous the snapshot the kept records are copied from, or {@code null}.
+     * @param kept the indexes of the records copied from {@code previous}, by secret length.
+     * @param fresh the sessions to encrypt, by secret length.
+     */
+    static void write(
+        Path path,
+        Snapshot previous,
+        Map<Integer, int[]> kept,
+        Map<Integer, List<Session>> fresh,
+        byte[] dataKeyBuf,
+        long sealedCount,
+        SecretKey keyEncryptionKey)
+        throws IOException, GeneralSecurityException {
+      TreeMap<Integer, Integer> recordCounts = new TreeMap<>();
+      kept.forEach((length, indexes) -> recordCounts.merge(length, indexes.length, Integer::sum));
+      fresh.forEach(
+          (length, sessions) -> recordCounts.merge(length, sessions.size(), Integer::sum));
+      recordCounts.values().removeIf(count -> count == 0);
+      for (Map.Entry<Integer, Integer> entry : recordCounts.entrySet()) {
+        if (entry.getValue() > Integer.MAX_VALUE / recordLength(entry.getKey())) {
+          throw new IOException("Too many sessions with " + entry.getKey() + "-byte secrets");
+        }
+      }
+
+      // Header and section table, which authenticate the wrapped data key
+      int tableLength = recordCounts.size() * SECTION_ENTRY_LENGTH;
+      byte[] header = new byte[HEADER_LENGTH];
+      ByteBuffer.wrap(header)
+          .putInt(MAGIC)
+          .putInt(VERSION)
+          .putInt(recordCounts.size())
+          .putLong(sealedCount);
+      ByteBuffer table = ByteBuffer.allocate(tableLength);
+      recordCounts.forEach((length, count) -> table.putInt(length).putInt(count));
+      byte[] nonce = new byte[NONCE_LENGTH];
+      random.nextBytes(nonce);
+      System.arraycopy(nonce, 0, header, HEADER_AAD_LENGTH, NONCE_LENGTH);
+      Cipher cipher = ciphers.get();
+      cipher.init(
+          Cipher.ENCRYPT_MODE, keyEncryptionKey, new GCMParameterSpec(8 * TAG_LENGTH, nonce));
+      cipher.updateAAD(header, 0, HEADER_AAD_LENGTH);
+      cipher.updateAAD(table.array());
+      cipher.doFinal(dataKeyBuf, 0, KEY_LENGTH, header, HEADER_AAD_LENGTH + NONCE_LENGTH);
+
+      SecretKey dataKey = new SecretKeySpec(dataKeyBuf, "AES");
+      try (FileChannel channel =
+          FileChannel.open(
+              path,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE)) {
+        MappedByteBuffer head =
+            channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH + tableLength);
+        head.put(0, header);
+        head.put(HEADER_LENGTH, table.array());
+        head.force();
+        long offset = HEADER_LENGTH + (long) tableLength;
+        for (Map.Entry<Integer, Integer> entry : recordCounts.entrySet()) {
+          int secretLength = entry.getKey();
+          int length = entry.getValue() * recordLength(secretLength);
+          MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset, length);
+          writeSection(
+              buffer,
+              previous == null ? null : previous.section(secretLength),
+              kept.getOrDefault(secretLength, new int[0]),
+              fresh.getOrDefault(secretLength, List.of()),
+              secretLength,
+              dataKey);
+          buffer.force();
+          offset += length;
+        }
+        channel.force(true);
+      }
+    }
+
+    /** Fills a section, copying kept records and encrypting new sessions in session id order. */
+    private static void writeSection(
+        MappedByteBuffer buffer,
+        Section section,
+        int[] kept,
+        List<Session> sessions,
+        int secretLength,
+        SecretKey dataKey)
+        throws GeneralSecurityException {
+      int recordLength = recordLength(secretLength);
+      int ciphertextOffset = RECORD_AAD_LENGTH + NONCE_LENGTH;
+      byte[] record = new byte[recordLength];
+      byte[] plaintext = new byte[1 + secretLength];
+      byte[] nonce = new byte[NONCE_LENGTH];
+      Cipher cipher = ciphers.get();
+      int keptPos = 0;
+      int sessionPos = 0;
+      int offset = 0;
+      try {
+        while (keptPos < kept.length || sessionPos < sessions.size()) {
+          if (sessionPos == sessions.size()
+              || (keptPos < kept.length
+                  && section.compareId(kept[keptPos], sessions.get(sessionPos).getSessionId())
+                      < 0)) {
+            // Copied as is, still encrypted
+            buffer.put(offset, section.buffer, kept[keptPos++] * recordLength, recordLength);
+          } else {
+            Session session = sessions.get(sessionPos++);
+            session.getSessionId().copyTo(record, 0);
+            ByteBuffer.wrap(record).putLong(SESSION_ID_LENGTH, session.getExpiresAtMillis());
+            random.nextBytes(nonce);
+            System.arraycopy(nonce, 0, record, RECORD_AAD_LENGTH, NONCE_LENGTH);
+            plaintext[0] = (byte) session.getCipherSuiteValue();
+            session.getSecret().copyTo(plaintext, 1);
+            cipher.init(Cipher.ENCRYPT_MODE, dataKey, new GCMParameterSpec(8 * TAG_LENGTH, nonce));
+            cipher.updateAAD(record, 0, RECORD_AAD_LENGTH);
+            cipher.doFinal(plaintext, 0, plaintext.length, record, ciphertextOffset);
+            buffer.put(offset, record);
+          }
+          offset += recordLength;
+        }
+      } finally {
+        Arrays.fill(plaintext, (byte) 0);
+        Arrays.fill(record, (byte) 0);
+      }
+    }
+
+    /** Looks up a session by binary search, returns {@code null} if absent or expired. */
+    Session find(ByteString sessionId) {
+      if (sessionId.size() != SESSION_ID_LENGTH) {
+        return null;
+      }
+      for (Section section : sections) {
+        int index = section.indexOf(sessionId);
+        if (index >= 0) {
+          return section.decrypt(index, dataKey);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Checks whether a record holds a live session. If a record holds another version of it, its
+     * id is added to {@code replaced}.
+     */
+    boolean holds(Session session, Set<ByteString> replaced) {
+      for (Section section : sections) {
+        int index = section.indexOf(session.getSessionId());
+        if (index >= 0) {
+          if (section.secretLength == session.getSecret().size()
+              && section.expiresAt(index) == session.getExpiresAtMillis()) {
+            return true;
+          }
+          replaced.add(session.getSessionId());
+          return false;
+        }
+      }
+      return false;
+    }
+
+    private Section section(int secretLength) {
+      for (Section section : sections) {
+        if (section.secretLength == secretLength) {
+          return section;
+        }
+      }
+      return null;
+    }
+
+    long recordCount() {
+      long count = 0;
+      for (Section section : sections) {
+        count += section.recordCount;
+      }
+      return count;
+    }
+  }
+}
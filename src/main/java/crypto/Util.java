@@ -1,7 +1,21 @@
 package crypto;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
 /** Utilities to manipulate bytes. */
 public class Util {
+  /**
+   * Wraps an array into a {@link ByteString} without copying it.
+   *
+   * <p>Only for arrays the caller owns exclusively and never modifies afterwards, such as the fresh
+   * array returned by {@code Key.getEncoded()} or a newly generated random id. Sharing the array
+   * saves the copy {@link ByteString#copyFrom(byte[])} would make.
+   */
+  public static ByteString wrapOwned(byte[] block) {
+    return UnsafeByteOperations.unsafeWrap(block);
+  }
+
   /** Converts a byte to hex digit and writes to the supplied buffer. */
   public static void byte2hex(byte b, StringBuffer buf) {
     char[] hexChars = {
@@ -19,10 +33,14 @@ public class Util {
 
   /** Converts a byte array to hex string. */
   public static String toHexString(byte[] block, String delim) {
+    return toHexString(block, 0, block.length, delim);
+  }
+
+  /** Converts a range of a byte array to hex string. */
+  public static String toHexString(byte[] block, int offset, int len, String delim) {
     StringBuffer buf = new StringBuffer();
-    int len = block.length;
     for (int i = 0; i < len; i++) {
-      byte2hex(block[i], buf);
+      byte2hex(block[offset + i], buf);
       if (i < len - 1) {
         buf.append(delim);
       }
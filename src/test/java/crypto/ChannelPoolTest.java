@@ -0,0 +1,158 @@
+package crypto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import crypto.CryptoOuterClass.CipherSuite;
+import io.grpc.Grpc;
+import io.grpc.InsecureServerCredentials;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ChannelPoolTest {
+  private final List<CryptoServer> servers = new ArrayList<>();
+
+  private List<String> startServers(int count) throws Exception {
+    List<String> targets = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      CryptoServer server =
+          new CryptoServer(Grpc.newServerBuilderForPort(0, InsecureServerCredentials.create()), 0);
+      server.start();
+      servers.add(server);
+      targets.add("localhost:" + server.getPort());
+    }
+    return targets;
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    for (CryptoServer server : servers) {
+      server.stop();
+    }
+  }
+
+  @Test
+  void acquire_weighs_outstanding_requests_by_latency() {
+    try (ChannelPool channelPool = new ChannelPool(List.of("localhost:1", "localhost:2"), 1)) {
+      ChannelPool.Connection fast = channelPool.acquire();
+      ChannelPool.Connection slow = channelPool.acquire();
+      assertNotSame(fast, slow);
+      channelPool.release(fast, TimeUnit.MILLISECONDS.toNanos(1), true);
+      channelPool.release(slow, TimeUnit.MICROSECONDS.toNanos(9500), true);
+
+      // 9.5 times faster, the fast connection takes requests until it has nine outstanding
+      for (int i = 0; i < 9; i++) {
+        assertSame(fast, channelPool.acquire());
+      }
+      assertSame(slow, channelPool.acquire());
+      assertEquals(9, fast.getOutstanding());
+    }
+  }
+
+  @Test
+  void acquire_assumes_average_latency_of_unmeasured_connection() {
+    try (ChannelPool channelPool =
+        new ChannelPool(List.of("localhost:1", "localhost:2", "localhost:3"), 1)) {
+      ChannelPool.Connection fast = channelPool.acquire();
+      ChannelPool.Connection slow = channelPool.acquire();
+      channelPool.release(fast, TimeUnit.MILLISECONDS.toNanos(1), true);
+      channelPool.release(slow, TimeUnit.MICROSECONDS.toNanos(9500), true);
+
+      // Assumed to take the mean 5.25 ms, the unmeasured one comes after five on the fast one
+      for (int i = 0; i < 5; i++) {
+        assertSame(fast, channelPool.acquire());
+      }
+      ChannelPool.Connection unmeasured = channelPool.acquire();
+      assertNotSame(fast, unmeasured);
+      assertNotSame(slow, unmeasured);
+    }
+  }
+
+  @Test
+  void acquire_prefers_ready_connections() throws Exception {
+    List<String> targets = startServers(1);
+    try (ChannelPool channelPool = new ChannelPool(targets, 2)) {
+      CryptoClient client = new CryptoClient(channelPool);
+      for (int i = 0; i < 10; i++) {
+        assertNotNull(client.doHandshake(CipherSuite.ECDH));
+      }
+
+      // The first handshake connected one connection, the other one is never used
+      int measured = 0;
+      for (ChannelPool.Connection connection : channelPool.getConnections()) {
+        if (connection.getLatencyNanos() > 0) {
+          measured++;
+        }
+      }
+      assertEquals(1, measured);
+    }
+  }
+
+  @Test
+  void release_failure_makes_connection_unattractive() {
+    try (ChannelPool channelPool = new ChannelPool(List.of("localhost:1", "localhost:2"), 1)) {
+      ChannelPool.Connection failing = channelPool.acquire();
+      ChannelPool.Connection healthy = channelPool.acquire();
+      channelPool.release(failing, 0, false);
+      channelPool.release(healthy, TimeUnit.MILLISECONDS.toNanos(10), true);
+
+      for (int i = 0; i < 10; i++) {
+        assertSame(healthy, channelPool.acquire());
+      }
+    }
+  }
+
+  @Test
+  void handshakes_spread_over_connections() throws Exception {
+    List<String> targets = startServers(2);
+    try (ChannelPool channelPool = new ChannelPool(targets, 2)) {
+      assertTrue(channelPool.warmUp(5, TimeUnit.SECONDS));
+      CryptoClient client = new CryptoClient(channelPool);
+      for (int i = 0; i < 20; i++) {
+        assertNotNull(client.doHandshake(CipherSuite.ECDH));
+      }
+
+      // Unmeasured connections are as attractive as the average one
+      assertEquals(4, channelPool.getConnections().size());
+      int measured = 0;
+      for (ChannelPool.Connection connection : channelPool.getConnections()) {
+        if (connection.getLatencyNanos() > 0) {
+          measured++;
+        }
+        assertEquals(0, connection.getOutstanding());
+      }
+      assertTrue(measured > 1);
+    }
+  }
+
+  @Test
+  void handshakes_concurrently() throws Exception {
+    List<String> targets = startServers(3);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try (ChannelPool channelPool = new ChannelPool(targets, 2)) {
+      assertTrue(channelPool.warmUp(5, TimeUnit.SECONDS));
+      List<Future<byte[]>> sharedSecrets = new ArrayList<>();
+      for (int i = 0; i < 64; i++) {
+        CryptoClient client = new CryptoClient(channelPool);
+        sharedSecrets.add(executor.submit(() -> client.doHandshake(CipherSuite.ECDH)));
+      }
+      for (Future<byte[]> sharedSecret : sharedSecrets) {
+        assertNotNull(sharedSecret.get(30, TimeUnit.SECONDS));
+      }
+      for (ChannelPool.Connection connection : channelPool.getConnections()) {
+        assertEquals(0, connection.getOutstanding());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package crypto;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assumptions.assumeFalse;
 
 import com.code_intelligence.jazzer.api.FuzzedDataProvider;
@@ -122,4 +124,52 @@ class DhEcdhFuzzTest {
   void ecdh_server(FuzzedDataProvider data) {
     dh_ecdh_server_receives_public_key_from_client(CipherSuite.ECDH, data);
   }
+
+  /** Runs a server side key agreement, returns null wherever the handshake would stop. */
+  byte[] server_agree(DiffieHellman algoInst, KeyPair serverKeyPair, PublicKey clientPublicKey) {
+    if (clientPublicKey == null) {
+      return null;
+    }
+    KeyAgreement keyAgreement = algoInst.getKeyAgreement(serverKeyPair);
+    if (keyAgreement == null || !algoInst.doPhase(keyAgreement, clientPublicKey)) {
+      return null;
+    }
+    return keyAgreement.generateSecret();
+  }
+
+  /** Cross-checks the P-256 engine's peer key handling and key agreement against the JDK. */
+  @FuzzTest
+  void p256_server(FuzzedDataProvider data) {
+    P256DiffieHellman p256 = P256DiffieHellman.getInstance();
+    EllipticCurveDiffieHellman sunEc = EllipticCurveDiffieHellman.getInstance();
+    // Server's private scalar and client's public key both come from the fuzzer
+    KeyPair serverKeyPair = p256.generateKeyPair(data.consumeBytes(P256.SCALAR_LENGTH));
+    if (serverKeyPair == null) {
+      return;
+    }
+    byte[] clientPublicKeyBuf = data.consumeRemainingAsBytes();
+    byte[] p256SharedSecret =
+        server_agree(p256, serverKeyPair, p256.getPeerPublicKey(clientPublicKeyBuf));
+    byte[] sunEcSharedSecret =
+        server_agree(sunEc, serverKeyPair, sunEc.getPeerPublicKey(clientPublicKeyBuf));
+    assertArrayEquals(sunEcSharedSecret, p256SharedSecret);
+  }
+
+  /** Cross-checks the P-256 engine's fixed-base key generation against the JDK. */
+  @FuzzTest
+  void p256_keygen(FuzzedDataProvider data) {
+    P256DiffieHellman p256 = P256DiffieHellman.getInstance();
+    EllipticCurveDiffieHellman sunEc = EllipticCurveDiffieHellman.getInstance();
+    KeyPair serverKeyPair = p256.generateKeyPair(data.consumeBytes(P256.SCALAR_LENGTH));
+    if (serverKeyPair == null) {
+      return;
+    }
+    KeyPair clientKeyPair = sunEc.generateKeyPair("secp256r1");
+    // The JDK must accept the generated public key and agree on the same secret
+    PublicKey serverPublicKey = sunEc.getPeerPublicKey(serverKeyPair.getPublic().getEncoded());
+    byte[] clientSharedSecret = server_agree(sunEc, clientKeyPair, serverPublicKey);
+    assertNotNull(clientSharedSecret);
+    assertArrayEquals(
+        clientSharedSecret, server_agree(p256, serverKeyPair, clientKeyPair.getPublic()));
+  }
 }
@@ -0,0 +1,49 @@
+package crypto;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.KeyPair;
+import java.util.Arrays;
+import javax.crypto.KeyAgreement;
+import org.junit.jupiter.api.Test;
+
+class KeyAgreementPoolTest {
+  void pooled_secret_matches(DiffieHellman algoInst, KeyPair clientKeyPair) {
+    KeyPair serverKeyPair = algoInst.generateKeyPair(clientKeyPair.getPublic());
+    KeyAgreement clientKeyAgreement = algoInst.getKeyAgreement(clientKeyPair);
+    assertTrue(algoInst.doPhase(clientKeyAgreement, serverKeyPair.getPublic()));
+    byte[] clientSharedSecret = clientKeyAgreement.generateSecret();
+
+    KeyAgreementPool pool = new KeyAgreementPool(algoInst, 1);
+    KeyAgreement serverKeyAgreement = pool.acquire(serverKeyPair);
+    assertNotNull(serverKeyAgreement);
+    assertTrue(algoInst.doPhase(serverKeyAgreement, clientKeyPair.getPublic()));
+    byte[] secretBuffer = pool.acquireSecretBuffer();
+    int secretLength = algoInst.generateSecret(serverKeyAgreement, secretBuffer, 0);
+    assertEquals(clientSharedSecret.length, secretLength);
+    assertArrayEquals(clientSharedSecret, Arrays.copyOf(secretBuffer, secretLength));
+
+    // Released buffers are zeroed and released key agreements are handed out again
+    pool.releaseSecretBuffer(secretBuffer);
+    pool.release(serverKeyAgreement);
+    assertArrayEquals(new byte[secretBuffer.length], secretBuffer);
+    assertSame(secretBuffer, pool.acquireSecretBuffer());
+    assertSame(serverKeyAgreement, pool.acquire(serverKeyPair));
+  }
+
+  @Test
+  void dh() {
+    DiffieHellman algoInst = DiffieHellman.getInstance();
+    pooled_secret_matches(algoInst, algoInst.generateKeyPair(2048));
+  }
+
+  @Test
+  void ecdh() {
+    EllipticCurveDiffieHellman algoInst = EllipticCurveDiffieHellman.getInstance();
+    pooled_secret_matches(algoInst, algoInst.generateKeyPair("secp256r1"));
+  }
+}
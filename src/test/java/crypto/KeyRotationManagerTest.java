@@ -0,0 +1,134 @@
+package crypto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.KeyAgreement;
+import org.junit.jupiter.api.Test;
+
+class KeyRotationManagerTest {
+  private final EllipticCurveDiffieHellman algoInst = EllipticCurveDiffieHellman.getInstance();
+
+  /** Runs ECDH, but holds back the key pairs prepared in the background until released. */
+  private static class GatedDiffieHellman extends DiffieHellman {
+    private final EllipticCurveDiffieHellman delegate = EllipticCurveDiffieHellman.getInstance();
+    private final AtomicInteger generated = new AtomicInteger();
+    private final Semaphore permits = new Semaphore(0);
+
+    @Override
+    public boolean isSameParameters(PublicKey publicKey, PublicKey otherPublicKey) {
+      return delegate.isSameParameters(publicKey, otherPublicKey);
+    }
+
+    @Override
+    public KeyPair generateKeyPair(PublicKey peerPublicKey) {
+      // The first key pair is the one seeded by the first handshake
+      if (generated.getAndIncrement() > 0) {
+        try {
+          permits.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+      return delegate.generateKeyPair(peerPublicKey);
+    }
+  }
+
+  @Test
+  void reuses_key_until_max_uses() throws Exception {
+    KeyPair clientKeyPair = algoInst.generateKeyPair("secp256r1");
+    try (KeyRotationManager manager = new KeyRotationManager(algoInst, 3600, 3)) {
+      KeyRotationManager.ServerKey first = manager.acquire(clientKeyPair.getPublic());
+      assertNotNull(first);
+      assertNotEquals(0, first.getEpoch());
+      assertSame(first, manager.acquire(clientKeyPair.getPublic()));
+      assertSame(first, manager.acquire(clientKeyPair.getPublic()));
+
+      // The next key pair is prepared in the background
+      assertTrue(manager.awaitNextKey(5, TimeUnit.SECONDS));
+      KeyRotationManager.ServerKey rotated = manager.acquire(clientKeyPair.getPublic());
+      assertEquals(first.getEpoch() + 1, rotated.getEpoch());
+      assertSame(rotated, manager.acquire(clientKeyPair.getPublic()));
+    }
+  }
+
+  @Test
+  void serves_active_key_until_next_is_ready() throws Exception {
+    KeyPair clientKeyPair = algoInst.generateKeyPair("secp256r1");
+    GatedDiffieHellman gatedAlgoInst = new GatedDiffieHellman();
+    try (KeyRotationManager manager = new KeyRotationManager(gatedAlgoInst, 3600, 1)) {
+      KeyRotationManager.ServerKey first = manager.acquire(clientKeyPair.getPublic());
+      assertNotNull(first);
+      // Used up, but the next key pair is held back
+      for (int i = 0; i < 10; i++) {
+        assertSame(first, manager.acquire(clientKeyPair.getPublic()));
+      }
+
+      gatedAlgoInst.permits.release();
+      assertTrue(manager.awaitNextKey(5, TimeUnit.SECONDS));
+      KeyRotationManager.ServerKey rotated = manager.acquire(clientKeyPair.getPublic());
+      assertEquals(first.getEpoch() + 1, rotated.getEpoch());
+    }
+  }
+
+  @Test
+  void managers_start_at_different_epochs() {
+    KeyPair clientKeyPair = algoInst.generateKeyPair("secp256r1");
+    try (KeyRotationManager manager = new KeyRotationManager(algoInst, 3600, 100);
+        KeyRotationManager other = new KeyRotationManager(algoInst, 3600, 100)) {
+      // Random 64-bit starting epochs, a collision is negligible
+      assertNotEquals(
+          manager.acquire(clientKeyPair.getPublic()).getEpoch(),
+          other.acquire(clientKeyPair.getPublic()).getEpoch());
+    }
+  }
+
+  @Test
+  void zero_max_uses_is_unlimited() throws Exception {
+    KeyPair clientKeyPair = algoInst.generateKeyPair("secp256r1");
+    try (KeyRotationManager manager = new KeyRotationManager(algoInst, 3600, 0)) {
+      KeyRotationManager.ServerKey first = manager.acquire(clientKeyPair.getPublic());
+      assertTrue(manager.awaitNextKey(5, TimeUnit.SECONDS));
+      for (int i = 0; i < 100; i++) {
+        assertSame(first, manager.acquire(clientKeyPair.getPublic()));
+      }
+    }
+  }
+
+  @Test
+  void rotated_key_agrees_with_peer() {
+    KeyPair clientKeyPair = algoInst.generateKeyPair("secp256r1");
+    try (KeyRotationManager manager = new KeyRotationManager(algoInst, 3600, 100)) {
+      KeyPair serverKeyPair = manager.acquire(clientKeyPair.getPublic()).getKeyPair();
+
+      KeyAgreement serverKeyAgreement = algoInst.getKeyAgreement(serverKeyPair);
+      assertTrue(algoInst.doPhase(serverKeyAgreement, clientKeyPair.getPublic()));
+      KeyAgreement clientKeyAgreement = algoInst.getKeyAgreement(clientKeyPair);
+      assertTrue(algoInst.doPhase(clientKeyAgreement, serverKeyPair.getPublic()));
+
+      assertEquals(
+          Util.toHexString(clientKeyAgreement.generateSecret()),
+          Util.toHexString(serverKeyAgreement.generateSecret()));
+    }
+  }
+
+  @Test
+  void other_parameters_get_fresh_key() {
+    try (KeyRotationManager manager = new KeyRotationManager(algoInst, 3600, 100)) {
+      manager.acquire(algoInst.generateKeyPair("secp256r1").getPublic());
+      KeyRotationManager.ServerKey serverKey =
+          manager.acquire(algoInst.generateKeyPair("secp384r1").getPublic());
+      assertNotNull(serverKey);
+      assertEquals(0, serverKey.getEpoch());
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package crypto;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import javax.crypto.KeyAgreement;
+import org.junit.jupiter.api.Test;
+
+class P256DiffieHellmanTest {
+  private static final BigInteger GX =
+      new BigInteger("6B17D1F2E12C4247F8BCE6E563A440F277037D812DEB33A0F4A13945D898C296", 16);
+  private static final BigInteger GY =
+      new BigInteger("4FE342E2FE1A7F9B8EE7EB4A7C0F9E162BCE33576B315ECECBB6406837BF51F5", 16);
+
+  private final P256DiffieHellman p256 = P256DiffieHellman.getInstance();
+  private final EllipticCurveDiffieHellman sunEc = EllipticCurveDiffieHellman.getInstance();
+
+  private static byte[] agree(DiffieHellman algoInst, KeyPair keyPair, PublicKey peerPublicKey) {
+    KeyAgreement keyAgreement = algoInst.getKeyAgreement(keyPair);
+    assertNotNull(keyAgreement);
+    assertTrue(algoInst.doPhase(keyAgreement, peerPublicKey));
+    return keyAgreement.generateSecret();
+  }
+
+  @Test
+  void base_point_multiples() {
+    ECPublicKey one = (ECPublicKey) p256.generateKeyPair(P256.toBytes(BigInteger.ONE)).getPublic();
+    assertEquals(GX, one.getW().getAffineX());
+    assertEquals(GY, one.getW().getAffineY());
+
+    ECPublicKey minusOne =
+        (ECPublicKey)
+            p256.generateKeyPair(P256.toBytes(P256.ORDER.subtract(BigInteger.ONE))).getPublic();
+    assertEquals(GX, minusOne.getW().getAffineX());
+    assertEquals(P256Field.MODULUS.subtract(GY), minusOne.getW().getAffineY());
+
+    assertNull(p256.generateKeyPair(new byte[P256.SCALAR_LENGTH]));
+    assertNull(p256.generateKeyPair(P256.toBytes(P256.ORDER)));
+  }
+
+  @Test
+  void agrees_with_sun_ec() {
+    for (int i = 0; i < 32; i++) {
+      KeyPair clientKeyPair = sunEc.generateKeyPair("secp256r1");
+      byte[] clientPublicKeyBuf = clientKeyPair.getPublic().getEncoded();
+
+      PublicKey clientPublicKey = p256.getPeerPublicKey(clientPublicKeyBuf);
+      assertTrue(clientPublicKey instanceof P256DiffieHellman.P256PublicKey);
+      KeyPair serverKeyPair = p256.generateKeyPair(clientPublicKey);
+      byte[] serverSharedSecret = agree(p256, serverKeyPair, clientPublicKey);
+
+      PublicKey serverPublicKey = sunEc.getPeerPublicKey(serverKeyPair.getPublic().getEncoded());
+      assertNotNull(serverPublicKey);
+      assertArrayEquals(agree(sunEc, clientKeyPair, serverPublicKey), serverSharedSecret);
+    }
+  }
+
+  @Test
+  void rejects_point_off_curve() {
+    byte[] publicKeyBuf = sunEc.generateKeyPair("secp256r1").getPublic().getEncoded();
+    publicKeyBuf[publicKeyBuf.length - 1] ^= 1;
+    assertNull(p256.getPeerPublicKey(publicKeyBuf));
+  }
+
+  @Test
+  void other_curves_use_sun_ec() {
+    KeyPair clientKeyPair = sunEc.generateKeyPair("secp384r1");
+    PublicKey clientPublicKey = p256.getPeerPublicKey(clientKeyPair.getPublic().getEncoded());
+    KeyPair serverKeyPair = p256.generateKeyPair(clientPublicKey);
+    assertArrayEquals(
+        agree(sunEc, clientKeyPair, serverKeyPair.getPublic()),
+        agree(p256, serverKeyPair, clientPublicKey));
+  }
+}
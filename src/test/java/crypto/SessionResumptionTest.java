@@ -0,0 +1,332 @@
+package crypto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.protobuf.ByteString;
+import crypto.CryptoGrpc.CryptoBlockingStub;
+import crypto.CryptoOuterClass.CipherSuite;
+import crypto.CryptoOuterClass.HandshakeData;
+import crypto.CryptoOuterClass.OpenConnectionRequest;
+import crypto.CryptoOuterClass.OpenConnectionResponse;
+import crypto.CryptoOuterClass.Session;
+import crypto.CryptoOuterClass.SessionBatch;
+import crypto.SessionReplicationGrpc.SessionReplicationBlockingStub;
+import io.grpc.ChannelCredentials;
+import io.grpc.Grpc;
+import io.grpc.InsecureChannelCredentials;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.TlsChannelCredentials;
+import io.grpc.TlsServerCredentials;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.testing.TlsTesting;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import javax.crypto.KeyAgreement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class SessionResumptionTest {
+  // The name the test server certificate is issued for
+  private static final String AUTHORITY = "foo.test.google.fr";
+  private static final byte[] TOKEN = "replication-test-token".getBytes(StandardCharsets.UTF_8);
+
+  private final List<CryptoServer> servers = new ArrayList<>();
+  private final List<ManagedChannel> channels = new ArrayList<>();
+  private final ServerKeyHandler serverKeys = new ServerKeyHandler();
+
+  /** Collects the keys the servers derive for resumed connections, which they only log. */
+  private static class ServerKeyHandler extends Handler {
+    private static final String PREFIX = "Resumed key derived by server: ";
+    private static final Logger serverLogger = Logger.getLogger(CryptoServer.class.getName());
+    private final List<String> keys = new CopyOnWriteArrayList<>();
+
+    ServerKeyHandler() {
+      serverLogger.addHandler(this);
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+      String message = record.getMessage();
+      if (message != null && message.startsWith(PREFIX)) {
+        keys.add(message.substring(PREFIX.length()));
+      }
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {
+      serverLogger.removeHandler(this);
+    }
+  }
+
+  private static String hex(byte[] key) {
+    return Util.toHexString(key, ":");
+  }
+
+  private ReplicatedSessionBackend newReplicatedBackend() throws Exception {
+    return newReplicatedBackend(4);
+  }
+
+  private ReplicatedSessionBackend newReplicatedBackend(int maxInFlightBatches) throws Exception {
+    return new ReplicatedSessionBackend(
+        0,
+        TlsServerCredentials.newBuilder()
+            .keyManager(TlsTesting.loadCert("server1.pem"), TlsTesting.loadCert("server1.key"))
+            .trustManager(TlsTesting.loadCert("ca.pem"))
+            .clientAuth(TlsServerCredentials.ClientAuth.REQUIRE)
+            .build(),
+        peerCredentials(),
+        TOKEN,
+        256,
+        maxInFlightBatches);
+  }
+
+  private static ChannelCredentials peerCredentials() throws Exception {
+    return TlsChannelCredentials.newBuilder()
+        .keyManager(TlsTesting.loadCert("client.pem"), TlsTesting.loadCert("client.key"))
+        .trustManager(TlsTesting.loadCert("ca.pem"))
+        .build();
+  }
+
+  private SessionReplicationBlockingStub connectReplication(
+      ReplicatedSessionBackend sessionBackend, byte[] token) throws Exception {
+    String target = "localhost:" + sessionBackend.getReplicationPort();
+    ManagedChannel channel =
+        Grpc.newChannelBuilder(target, peerCredentials()).overrideAuthority(AUTHORITY).build();
+    channels.add(channel);
+    Metadata headers = new Metadata();
+    headers.put(Metadata.Key.of("replication-token-bin", Metadata.BINARY_BYTE_MARSHALLER), token);
+    return SessionReplicationGrpc.newBlockingStub(channel)
+        .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+  }
+
+  private static Session newSession(byte[] sessionId, byte[] secret) {
+    return Session.newBuilder()
+        .setSessionId(ByteString.copyFrom(sessionId))
+        .setCipherSuite(CipherSuite.ECDH)
+        .setSecret(ByteString.copyFrom(secret))
+        .setExpiresAtMillis(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1))
+        .build();
+  }
+
+  private CryptoServer startServer(SessionBackend sessionBackend) throws Exception {
+    CryptoServer server =
+        new CryptoServer(
+            Grpc.newServerBuilderForPort(0, InsecureServerCredentials.create()),
+            0,
+            0,
+            0,
+            sessionBackend);
+    server.start();
+    servers.add(server);
+    return server;
+  }
+
+  private ManagedChannel connect(CryptoServer server) {
+    ManagedChannel channel =
+        Grpc.newChannelBuilder(
+                "localhost:" + server.getPort(), InsecureChannelCredentials.create())
+            .build();
+    channels.add(channel);
+    return channel;
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    serverKeys.close();
+    for (ManagedChannel channel : channels) {
+      channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+    for (CryptoServer server : servers) {
+      server.stop();
+    }
+  }
+
+  @Test
+  void resumes_on_same_server() throws Exception {
+    CryptoServer server = startServer(new InMemorySessionBackend());
+    CryptoClient client = new CryptoClient(connect(server));
+
+    byte[] sharedSecret = client.doHandshake(CipherSuite.ECDH);
+    assertNotNull(sharedSecret);
+    // Every resumption gets a fresh key
+    byte[] firstResumedKey = client.doHandshake(CipherSuite.ECDH);
+    byte[] secondResumedKey = client.doHandshake(CipherSuite.ECDH);
+    assertNotNull(firstResumedKey);
+    assertNotNull(secondResumedKey);
+    assertFalse(Arrays.equals(sharedSecret, firstResumedKey));
+    assertFalse(Arrays.equals(firstResumedKey, secondResumedKey));
+    // The server derives the same keys
+    assertEquals(List.of(hex(firstResumedKey), hex(secondResumedKey)), serverKeys.keys);
+  }
+
+  @Test
+  void resumption_requires_binder() throws Exception {
+    CryptoServer server = startServer(new InMemorySessionBackend());
+    CryptoBlockingStub stub = CryptoGrpc.newBlockingStub(connect(server));
+    OpenConnectionRequest request = newEcdhRequest(newClientKeyPair());
+    OpenConnectionResponse opened = stub.openConnection(request);
+
+    // Knowing the session id without its secret does not resume the session
+    ByteString clientNonce = SessionResumption.newNonce();
+    OpenConnectionResponse response =
+        stub.openConnection(
+            request.toBuilder()
+                .setSessionId(opened.getSessionId())
+                .setClientNonce(clientNonce)
+                .setResumptionBinder(ByteString.copyFrom(new byte[32]))
+                .build());
+    assertFalse(response.getResumed());
+  }
+
+  @Test
+  void resumes_on_other_replica() throws Exception {
+    ReplicatedSessionBackend firstBackend = newReplicatedBackend();
+    ReplicatedSessionBackend secondBackend = newReplicatedBackend();
+    CryptoServer first = startServer(firstBackend);
+    CryptoServer second = startServer(secondBackend);
+    firstBackend.addPeer("localhost:" + secondBackend.getReplicationPort(), AUTHORITY);
+    secondBackend.addPeer("localhost:" + firstBackend.getReplicationPort(), AUTHORITY);
+
+    CryptoBlockingStub firstStub = CryptoGrpc.newBlockingStub(connect(first));
+    CryptoBlockingStub secondStub = CryptoGrpc.newBlockingStub(connect(second));
+    KeyPair clientKeyPair = newClientKeyPair();
+    OpenConnectionRequest request = newEcdhRequest(clientKeyPair);
+
+    OpenConnectionResponse opened = firstStub.openConnection(request);
+    assertFalse(opened.getResumed());
+    assertFalse(opened.getSessionId().isEmpty());
+    Session session = toSession(clientKeyPair, opened);
+
+    // Replication is asynchronous, the session shows up on the other replica shortly after
+    ByteString clientNonce = SessionResumption.newNonce();
+    OpenConnectionRequest resumeRequest =
+        request.toBuilder()
+            .setSessionId(opened.getSessionId())
+            .setClientNonce(clientNonce)
+            .setResumptionBinder(SessionResumption.binder(session, clientNonce))
+            .build();
+    OpenConnectionResponse resumed = secondStub.openConnection(resumeRequest);
+    for (int i = 0; i < 50 && !resumed.getResumed(); i++) {
+      Thread.sleep(100);
+      resumed = secondStub.openConnection(resumeRequest);
+    }
+    assertTrue(resumed.getResumed());
+    assertTrue(resumed.getSessionId().equals(opened.getSessionId()));
+    byte[] resumedKey = SessionResumption.deriveKey(session, clientNonce, resumed.getServerNonce());
+    assertNotNull(resumedKey);
+    assertEquals(List.of(hex(resumedKey)), serverKeys.keys);
+  }
+
+  private static KeyPair newClientKeyPair() {
+    return EllipticCurveDiffieHellman.getInstance().generateKeyPair("secp256r1");
+  }
+
+  private static OpenConnectionRequest newEcdhRequest(KeyPair clientKeyPair) {
+    return OpenConnectionRequest.newBuilder()
+        .addHandshakeDataList(
+            HandshakeData.newBuilder()
+                .setCipherSuite(CipherSuite.ECDH)
+                .setData(ByteString.copyFrom(clientKeyPair.getPublic().getEncoded())))
+        .build();
+  }
+
+  /** Completes the client's side of a full handshake into the session the server stored. */
+  private static Session toSession(KeyPair clientKeyPair, OpenConnectionResponse response) {
+    EllipticCurveDiffieHellman algoInst = EllipticCurveDiffieHellman.getInstance();
+    KeyAgreement keyAgreement = algoInst.getKeyAgreement(clientKeyPair);
+    assertTrue(
+        algoInst.doPhase(
+            keyAgreement,
+            algoInst.getPeerPublicKey(response.getHandshakeData().getData().toByteArray())));
+    return Session.newBuilder()
+        .setSessionId(response.getSessionId())
+        .setCipherSuite(CipherSuite.ECDH)
+        .setSecret(ByteString.copyFrom(keyAgreement.generateSecret()))
+        .build();
+  }
+
+  @Test
+  void replication_requires_mutual_tls() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new ReplicatedSessionBackend(
+                0, InsecureServerCredentials.create(), InsecureChannelCredentials.create(), TOKEN));
+  }
+
+  @Test
+  void replication_rejects_wrong_token() throws Exception {
+    byte[] sessionId = new byte[16];
+    SessionBatch batch =
+        SessionBatch.newBuilder().addSessions(newSession(sessionId, new byte[32])).build();
+    byte[] wrongToken = "wrong-replication-token".getBytes(StandardCharsets.UTF_8);
+
+    try (ReplicatedSessionBackend sessionBackend = newReplicatedBackend()) {
+      SessionReplicationBlockingStub stub = connectReplication(sessionBackend, wrongToken);
+      StatusRuntimeException e =
+          assertThrows(StatusRuntimeException.class, () -> stub.replicate(batch));
+      assertEquals(Status.Code.UNAUTHENTICATED, e.getStatus().getCode());
+      assertNull(sessionBackend.get(ByteString.copyFrom(sessionId)));
+    }
+  }
+
+  @Test
+  void replication_does_not_overwrite_session() throws Exception {
+    byte[] sessionId = new byte[16];
+    byte[] secret = new byte[32];
+    Arrays.fill(secret, (byte) 1);
+
+    try (ReplicatedSessionBackend sessionBackend = newReplicatedBackend()) {
+      sessionBackend.put(newSession(sessionId, secret));
+      connectReplication(sessionBackend, TOKEN)
+          .replicate(
+              SessionBatch.newBuilder().addSessions(newSession(sessionId, new byte[32])).build());
+      Session stored = sessionBackend.get(ByteString.copyFrom(sessionId));
+      assertEquals(ByteString.copyFrom(secret), stored.getSecret());
+    }
+  }
+
+  @Test
+  void replication_continues_past_unresponsive_peer() throws Exception {
+    // Accepts connections but never answers
+    try (ServerSocket unresponsive = new ServerSocket(0);
+        ReplicatedSessionBackend sessionBackend = newReplicatedBackend(1);
+        ReplicatedSessionBackend healthy = newReplicatedBackend()) {
+      sessionBackend.addPeer("localhost:" + unresponsive.getLocalPort(), AUTHORITY);
+      sessionBackend.addPeer("localhost:" + healthy.getReplicationPort(), AUTHORITY);
+
+      // The second batch would wait on the unresponsive peer's only in-flight batch
+      for (int i = 0; i < 2; i++) {
+        byte[] sessionId = new byte[16];
+        sessionId[0] = (byte) i;
+        sessionBackend.put(newSession(sessionId, new byte[32]));
+        ByteString replicatedId = ByteString.copyFrom(sessionId);
+        for (int j = 0; j < 20 && healthy.get(replicatedId) == null; j++) {
+          Thread.sleep(100);
+        }
+        assertNotNull(healthy.get(replicatedId));
+      }
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package crypto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.protobuf.ByteString;
+import crypto.CryptoOuterClass.CipherSuite;
+import crypto.CryptoOuterClass.Session;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SnapshotSessionBackendTest {
+  private static final SecureRandom random = new SecureRandom();
+  // Secret lengths of 256-bit ECDH, 521-bit ECDH and 2048-bit DH
+  private static final int[] SECRET_LENGTHS = {32, 66, 256};
+
+  @TempDir Path dir;
+  private Path snapshotPath;
+  private SecretKey keyEncryptionKey;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    snapshotPath = dir.resolve("sessions.snapshot");
+    keyEncryptionKey = SnapshotSessionBackend.loadKeyEncryptionKey(dir.resolve("sessions.kek"));
+  }
+
+  private static Session newSession(long lifetimeMillis, int secretLength) {
+    byte[] sessionId = new byte[16];
+    byte[] secret = new byte[secretLength];
+    random.nextBytes(sessionId);
+    random.nextBytes(secret);
+    return Session.newBuilder()
+        .setSessionId(ByteString.copyFrom(sessionId))
+        .setCipherSuite(CipherSuite.ECDH)
+        .setSecret(ByteString.copyFrom(secret))
+        .setExpiresAtMillis(System.currentTimeMillis() + lifetimeMillis)
+        .build();
+  }
+
+  private SnapshotSessionBackend open(SecretKey key) {
+    return new SnapshotSessionBackend(new InMemorySessionBackend(), snapshotPath, key, 3600);
+  }
+
+  @Test
+  void restart_resumes_sessions() {
+    List<Session> sessions = new ArrayList<>();
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      for (int i = 0; i < 100; i++) {
+        Session session = newSession(TimeUnit.HOURS.toMillis(1), SECRET_LENGTHS[i % 3]);
+        sessions.add(session);
+        backend.put(session);
+      }
+    }
+
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      for (Session session : sessions) {
+        assertEquals(session, backend.get(session.getSessionId()));
+      }
+      assertNull(backend.get(newSession(TimeUnit.HOURS.toMillis(1), 32).getSessionId()));
+    }
+  }
+
+  @Test
+  void restart_keeps_unresumed_sessions() {
+    Session resumed = newSession(TimeUnit.HOURS.toMillis(1), 32);
+    Session unresumed = newSession(TimeUnit.HOURS.toMillis(1), 32);
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      backend.put(resumed);
+      backend.put(unresumed);
+    }
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      assertEquals(resumed, backend.get(resumed.getSessionId()));
+    }
+
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      assertEquals(resumed, backend.get(resumed.getSessionId()));
+      assertEquals(unresumed, backend.get(unresumed.getSessionId()));
+    }
+  }
+
+  @Test
+  void restart_drops_expired_and_oversized_sessions() throws Exception {
+    Session expiring = newSession(100, 32);
+    Session oversized = newSession(TimeUnit.HOURS.toMillis(1), 1025);
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      backend.put(expiring);
+      backend.put(oversized);
+    }
+    Thread.sleep(200);
+
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      assertNull(backend.get(expiring.getSessionId()));
+      assertNull(backend.get(oversized.getSessionId()));
+    }
+  }
+
+  @Test
+  void tampered_record_is_ignored() throws Exception {
+    Session session = newSession(TimeUnit.HOURS.toMillis(1), 32);
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      backend.put(session);
+    }
+    try (FileChannel channel =
+        FileChannel.open(snapshotPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // Flips a byte of the record's tag
+      ByteBuffer last = ByteBuffer.allocate(1);
+      channel.read(last, channel.size() - 1);
+      last.put(0, (byte) ~last.get(0));
+      channel.write(last.flip(), channel.size() - 1);
+    }
+
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      assertNull(backend.get(session.getSessionId()));
+    }
+  }
+
+  @Test
+  void wrong_key_encryption_key_ignores_snapshot() throws Exception {
+    Session session = newSession(TimeUnit.HOURS.toMillis(1), 32);
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      backend.put(session);
+    }
+    SecretKey otherKey = SnapshotSessionBackend.loadKeyEncryptionKey(dir.resolve("other.kek"));
+
+    try (SnapshotSessionBackend backend = open(otherKey)) {
+      assertNull(backend.get(session.getSessionId()));
+    }
+  }
+
+  @Test
+  void truncated_snapshot_is_ignored() throws Exception {
+    Session session = newSession(TimeUnit.HOURS.toMillis(1), 32);
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      backend.put(session);
+    }
+    byte[] content = Files.readAllBytes(snapshotPath);
+    Files.write(snapshotPath, Arrays.copyOf(content, content.length - 1));
+
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      assertNull(backend.get(session.getSessionId()));
+    }
+  }
+
+  @Test
+  void checkpoint_carries_sealed_records() throws Exception {
+    Session first = newSession(TimeUnit.HOURS.toMillis(1), 32);
+    Session second = newSession(TimeUnit.HOURS.toMillis(1), 32);
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      backend.put(first);
+    }
+    byte[] content = Files.readAllBytes(snapshotPath);
+    // The file ends with the only record
+    byte[] firstRecord = Arrays.copyOfRange(content, content.length - 85, content.length);
+
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      backend.put(second);
+    }
+    // Copied as is rather than decrypted and encrypted again
+    assertTrue(contains(Files.readAllBytes(snapshotPath), firstRecord));
+
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      assertEquals(first, backend.get(first.getSessionId()));
+      assertEquals(second, backend.get(second.getSessionId()));
+    }
+  }
+
+  @Test
+  void records_are_sized_by_secret_length() throws Exception {
+    try (SnapshotSessionBackend backend = open(keyEncryptionKey)) {
+      for (int i = 0; i < 100; i++) {
+        backend.put(newSession(TimeUnit.HOURS.toMillis(1), 32));
+      }
+    }
+
+    // Records of 32-byte secrets are not padded to the longest secret
+    assertTrue(Files.size(snapshotPath) < 100 * 100);
+  }
+
+  private static boolean contains(byte[] content, byte[] part) {
+    for (int i = 0; i + part.length <= content.length; i++) {
+      if (Arrays.equals(content, i, i + part.length, part, 0, part.length)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}